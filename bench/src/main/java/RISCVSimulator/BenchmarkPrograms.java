@@ -0,0 +1,38 @@
+/* File: BenchmarkPrograms.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file finds the test binaries used by the benchmarks and loads them.
+ * Benchmarks can be run from the repository root or from the bench directory.
+ */
+
+package RISCVSimulator;
+
+import java.io.File;
+import java.io.IOException;
+
+final class BenchmarkPrograms {
+    private static final String[] TEST_ROOTS = {"tests", "../tests"};
+
+    private BenchmarkPrograms() {}
+
+    /**
+     * Returns a file below the tests directory, e.g. "Test3/loop.bin".
+     */
+    static File find(String name) {
+        for(String root : TEST_ROOTS){
+            File file = new File(root, name);
+            if(file.isFile()) return file;
+        }
+        throw new IllegalArgumentException("tests/" + name + " not found, run the benchmarks from the repository root");
+    }
+
+    /**
+     * Returns the raw instruction words of a test binary.
+     */
+    static int[] words(String name) throws IOException {
+        Program program = BinaryFiles.loadProgram(find(name), new Memory(Memory.DEFAULT_SIZE));
+        int[] words = new int[program.length];
+        for(int i = 0; i < words.length; i++) words[i] = program.word(i);
+        return words;
+    }
+}
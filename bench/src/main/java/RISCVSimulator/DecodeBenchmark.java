@@ -0,0 +1,55 @@
+/* File: DecodeBenchmark.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file benchmarks instruction decoding of the words of the test programs:
+ * building Instruction objects as the GUI does, and decoding into a Program's arrays as the run loops do.
+ * Results are reported per decoded instruction.
+ */
+
+package RISCVSimulator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private static final int WORDS = 1024;
+    private int[] words;
+    private Memory mem;     // Holds the words at address 0, for decoding into a Program
+
+    // Repeats the words of the test programs to WORDS instructions
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        int[] branchmany = BenchmarkPrograms.words("Test2/branchmany.bin");
+        int[] loop = BenchmarkPrograms.words("Test3/loop.bin");
+        words = new int[WORDS];
+        for(int i = 0; i < WORDS; i++){
+            int j = i % (branchmany.length + loop.length);
+            words[i] = j < branchmany.length ? branchmany[j] : loop[j - branchmany.length];
+        }
+        mem = new Memory(Memory.DEFAULT_SIZE);
+        for(int i = 0; i < WORDS; i++) mem.storeWord(i << 2, words[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void instruction(Blackhole bh) {
+        for(int word : words) bh.consume(new Instruction(word));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public Program program() {
+        Program program = new Program(mem, 0, WORDS, 0, SymbolTable.EMPTY);
+        for(int i = 0; i < WORDS; i++) program.decode(i);
+        return program;
+    }
+}
@@ -0,0 +1,76 @@
+/* File: ExecutionBenchmark.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file benchmarks end-to-end runs of test programs with each execution engine:
+ * executeInstruction() stepping as done by the GUI, the predecoded interpreter, the basic-block engine and the JIT.
+ * The primary result is the time per program run; the secondary "instructions" result is the time per retired instruction.
+ */
+
+package RISCVSimulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExecutionBenchmark {
+    @Param({"Test2/branchmany.bin", "Test3/loop.bin"})
+    public String program;
+
+    @Param({"step", "interpret", "blocks", "jit"})
+    public String engine;
+
+    private Memory mem;
+    private Program loaded;
+
+    // Counts retired instructions, so JMH reports the time per instruction next to the time per run
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Retired {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        mem = new Memory(Memory.DEFAULT_SIZE);
+        loaded = BinaryFiles.loadProgram(BenchmarkPrograms.find(program), mem);
+    }
+
+    @Benchmark
+    public int run(Retired retired) {
+        CPU cpu = new CPU(mem, loaded);
+        cpu.setOutput(OutputSink.DISCARD);
+        long instructions = 0;
+        switch(engine){
+            case "step":
+                while(loaded.contains(cpu.pc)){
+                    cpu.executeInstruction();
+                    instructions++;
+                }
+                break;
+            case "interpret":
+                instructions = cpu.interpret();
+                break;
+            case "blocks":
+                cpu.setJitThreshold(0);
+                instructions = cpu.run();
+                break;
+            default:
+                instructions = cpu.run();
+                break;
+        }
+        retired.instructions += instructions;
+        return cpu.reg[10];
+    }
+}
@@ -0,0 +1,75 @@
+/* File: MemoryAccessBenchmark.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file benchmarks byte, halfword and word loads and stores of Memory.
+ * Each invocation accesses ACCESSES consecutive addresses, so results are reported per access.
+ */
+
+package RISCVSimulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryAccessBenchmark {
+    private static final int ACCESSES = 1024;
+    private static final int BASE = 0x10000;    // Accesses span several pages from here
+
+    private Memory mem;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        mem = new Memory(Memory.DEFAULT_SIZE);
+        for(int i = 0; i < ACCESSES; i++){
+            mem.storeWord(BASE + i*4, i * 0x01010101);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int loadByte() {
+        int sum = 0;
+        for(int i = 0; i < ACCESSES; i++) sum += mem.getByte(BASE + i*4);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int loadHalfWord() {
+        int sum = 0;
+        for(int i = 0; i < ACCESSES; i++) sum += mem.getHalfWord(BASE + i*4);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int loadWord() {
+        int sum = 0;
+        for(int i = 0; i < ACCESSES; i++) sum += mem.getWord(BASE + i*4);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void storeByte() {
+        for(int i = 0; i < ACCESSES; i++) mem.storeByte(BASE + i*4, i);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void storeHalfWord() {
+        for(int i = 0; i < ACCESSES; i++) mem.storeHalfWord(BASE + i*4, (short) i);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void storeWord() {
+        for(int i = 0; i < ACCESSES; i++) mem.storeWord(BASE + i*4, i);
+    }
+}
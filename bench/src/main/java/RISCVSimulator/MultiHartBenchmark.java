@@ -0,0 +1,89 @@
+/* File: MultiHartBenchmark.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file benchmarks how a Machine scales with the number of harts, each running the same program on its
+ * own thread. The "private" workload computes in registers and publishes its result with one amoadd.w, so the harts
+ * never contend; the "shared" workload does an amoadd.w on the same word in every iteration.
+ * The primary result is the time per machine run; the secondary "instructions" result is the time per retired
+ * instruction over all harts, so perfect scaling keeps the run time constant as harts are added.
+ */
+
+package RISCVSimulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiHartBenchmark {
+    // 100000 iterations of register arithmetic, then one atomic add to 0x1000
+    private static final int[] PRIVATE = {
+        0x00001637,     // lui a2, 0x1
+        0x000182B7,     // lui t0, 0x18
+        0x6A028293,     // addi t0, t0, 1696
+        0x00000313,     // addi t1, x0, 0
+        0x00530333,     // loop: add t1, t1, t0
+        0x00A34333,     // xor t1, t1, a0
+        0xFFF28293,     // addi t0, t0, -1
+        0xFE029AE3,     // bne t0, x0, loop
+        0x0066202F,     // amoadd.w x0, t1, (a2)
+        0x00A00513,     // addi a0, x0, 10
+        0x00000073,     // ecall
+    };
+
+    // 20000 atomic adds to 0x1000
+    private static final int[] SHARED = {
+        0x00001637,     // lui a2, 0x1
+        0x000052B7,     // lui t0, 0x5
+        0xE2028293,     // addi t0, t0, -480
+        0x00100E13,     // addi t3, x0, 1
+        0x01C6202F,     // loop: amoadd.w x0, t3, (a2)
+        0xFFF28293,     // addi t0, t0, -1
+        0xFE029CE3,     // bne t0, x0, loop
+        0x00A00513,     // addi a0, x0, 10
+        0x00000073,     // ecall
+    };
+
+    @Param({"1", "2", "4", "8"})
+    public int harts;
+
+    @Param({"private", "shared"})
+    public String workload;
+
+    private Memory mem;
+    private Program[] programs;     // One decode cache per hart, kept warm between runs
+
+    // Counts retired instructions of all harts, so JMH reports the time per instruction next to the time per run
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Retired {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void load() {
+        int[] words = workload.equals("private") ? PRIVATE : SHARED;
+        mem = new Memory(Memory.DEFAULT_SIZE);
+        for(int i = 0; i < words.length; i++) mem.storeWord(i << 2, words[i]);
+        programs = Machine.copies(new Program(mem, 0, words.length, 0, SymbolTable.EMPTY), harts);
+    }
+
+    @Benchmark
+    public long run(Retired retired) throws InterruptedException {
+        Machine machine = new Machine(mem, programs);
+        machine.setOutput(OutputSink.DISCARD);
+        long instructions = machine.run();
+        retired.instructions += instructions;
+        return instructions;
+    }
+}
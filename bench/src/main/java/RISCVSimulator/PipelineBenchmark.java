@@ -0,0 +1,89 @@
+/* File: PipelineBenchmark.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file benchmarks the cost of timing a run with the Pipeline model and the CacheHierarchy. "off" runs
+ * the program with run() alone, "trace" with an empty TraceListener, which gives the cost of interpreting and reporting
+ * every instruction, "pipeline" with the pipeline model, "caches" with the default caches, "both" with both, and
+ * "predictor" with a tournament BranchPredictor, and "record" with a TraceRecorder writing to a temporary file.
+ * The programs are those of ProfilerBenchmark.
+ * The primary result is the time per program run; the secondary "instructions" result is the time per retired instruction.
+ */
+
+package RISCVSimulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    @Param({"loop", "calls"})
+    public String program;
+
+    @Param({"off", "trace", "pipeline", "caches", "both", "predictor", "record"})
+    public String timing;
+
+    private Memory mem;
+    private Program loaded;
+    private File trace;
+
+    // Counts retired instructions, so JMH reports the time per instruction next to the time per run
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Retired {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void load() {
+        int[] words = program.equals("loop") ? ProfilerBenchmark.LOOP : ProfilerBenchmark.CALLS;
+        mem = new Memory(Memory.DEFAULT_SIZE);
+        for(int i = 0; i < words.length; i++) mem.storeWord(i << 2, words[i]);
+        loaded = new Program(mem, 0, words.length, 0, SymbolTable.EMPTY);
+    }
+
+    @Setup(Level.Trial)
+    public void createTrace() throws IOException {
+        trace = File.createTempFile("benchmark", ".trace");
+        trace.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTrace() {
+        trace.delete();
+    }
+
+    @Benchmark
+    public long run(Retired retired) throws IOException {
+        CPU cpu = new CPU(mem, loaded);
+        cpu.setOutput(OutputSink.DISCARD);
+        switch(timing){
+            case "trace":    cpu.setTracer((pc, op, rd, rs1, rs2, address, nextPc) -> {}); break;
+            case "pipeline": cpu.setTracer(new Pipeline(loaded)); break;
+            case "caches":   cpu.setTracer(CacheHierarchy.parse(loaded, "default")); break;
+            case "both":     cpu.setTracer(TraceListener.of(new Pipeline(loaded), CacheHierarchy.parse(loaded, "default"))); break;
+            case "predictor": cpu.setTracer(BranchPredictor.parse(loaded, "tournament")); break;
+        }
+        TraceRecorder recorder = null;
+        if(timing.equals("record")){
+            recorder = new TraceRecorder(cpu, loaded, trace);
+            cpu.setTracer(recorder);
+        }
+        long instructions = cpu.run();
+        if(recorder != null) recorder.close();
+        retired.instructions += instructions;
+        return instructions;
+    }
+}
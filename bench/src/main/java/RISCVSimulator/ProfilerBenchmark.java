@@ -0,0 +1,102 @@
+/* File: ProfilerBenchmark.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file benchmarks the cost of profiling a run with the Profiler, compared to the same run without it.
+ * The "loop" program is a tight loop of one 4-instruction block, where the profiler's cost per block dominates;
+ * the "calls" program is a recursive Fibonacci with a call or return every few instructions, its worst case.
+ * The primary result is the time per program run; the secondary "instructions" result is the time per retired instruction.
+ */
+
+package RISCVSimulator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfilerBenchmark {
+    // 200000 iterations of a 4-instruction loop
+    static final int[] LOOP = {
+        0x000312B7,     // lui t0, 0x31
+        0xD4028293,     // addi t0, t0, -704
+        0x00000313,     // addi t1, x0, 0
+        0x00530333,     // loop: add t1, t1, t0
+        0x00A34333,     // xor t1, t1, a0
+        0xFFF28293,     // addi t0, t0, -1
+        0xFE029AE3,     // bne t0, x0, loop
+        0x00A00513,     // addi a0, x0, 10
+        0x00000073,     // ecall
+    };
+
+    // Prints fib(20), computed recursively
+    static final int[] CALLS = {
+        0x01400513,     // addi a0, x0, 20
+        0x01C000EF,     // jal ra, fib
+        0x00050593,     // addi a1, a0, 0
+        0x00100513,     // addi a0, x0, 1
+        0x00000073,     // ecall
+        0x00A00513,     // addi a0, x0, 10
+        0x00000073,     // ecall
+        0x00000013,     // nop
+        0x00200293,     // fib: addi t0, x0, 2
+        0x02554C63,     // blt a0, t0, done
+        0xFF410113,     // addi sp, sp, -12
+        0x00112023,     // sw ra, 0(sp)
+        0x00A12223,     // sw a0, 4(sp)
+        0xFFF50513,     // addi a0, a0, -1
+        0xFE9FF0EF,     // jal ra, fib
+        0x00A12423,     // sw a0, 8(sp)
+        0x00412503,     // lw a0, 4(sp)
+        0xFFE50513,     // addi a0, a0, -2
+        0xFD9FF0EF,     // jal ra, fib
+        0x00812283,     // lw t0, 8(sp)
+        0x00550533,     // add a0, a0, t0
+        0x00012083,     // lw ra, 0(sp)
+        0x00C10113,     // addi sp, sp, 12
+        0x00008067,     // done: jalr x0, 0(ra)
+    };
+
+    @Param({"loop", "calls"})
+    public String program;
+
+    @Param({"false", "true"})
+    public boolean profile;
+
+    private Memory mem;
+    private Program loaded;
+
+    // Counts retired instructions, so JMH reports the time per instruction next to the time per run
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Retired {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void load() {
+        int[] words = program.equals("loop") ? LOOP : CALLS;
+        mem = new Memory(Memory.DEFAULT_SIZE);
+        for(int i = 0; i < words.length; i++) mem.storeWord(i << 2, words[i]);
+        loaded = new Program(mem, 0, words.length, 0, SymbolTable.EMPTY);
+    }
+
+    @Benchmark
+    public long run(Retired retired) {
+        CPU cpu = new CPU(mem, loaded);
+        cpu.setOutput(OutputSink.DISCARD);
+        if(profile) cpu.setProfiler(new Profiler(loaded));
+        long instructions = cpu.run();
+        retired.instructions += instructions;
+        return instructions;
+    }
+}
@@ -0,0 +1,87 @@
+/* File: BinaryFiles.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file handles reading RISC-V programs (flat binaries and ELF files) and reading/writing register dumps.
+ * Shared by the GUI and the headless runners, so it must not depend on JavaFX.
+ */
+
+package RISCVSimulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class BinaryFiles {
+
+    /**
+     * Loads a RISC-V ELF executable (see ElfLoader), or maps a flat RISC-V binary file at address 0 of memory.
+     * Every word of a flat binary belongs to the program and execution starts at address 0.
+     * The file is memory-mapped rather than copied into memory, and instructions are decoded when first executed.
+     * @param f: A RISC-V ELF or flat binary file
+     * @param mem: Memory the program is mapped into
+     * @return The loaded program
+     * @throws IOException Throws exception if file is busy, or is not a valid RISC-V ELF file
+     */
+    static Program loadProgram(File f, Memory mem) throws IOException {
+        ByteBuffer file = mapFile(f);
+        if(ElfLoader.isElf(file)) return ElfLoader.load(file, mem);
+        mem.mapImage(0, file);
+        return new Program(mem, 0, file.remaining()/4, 0, SymbolTable.EMPTY);
+    }
+
+    /**
+     * Memory-maps a file read-only and maps it into memory at the given address.
+     * Pages of the file are only read when the program touches them and are only copied when it writes them,
+     * so large RAM images load instantly and several memories loading the same file share the mapped pages.
+     * @param f: A raw little-endian memory image
+     * @param mem: Memory the image is mapped into
+     * @param addr: Address of the first byte of the image
+     * @return The mapped file as a little-endian buffer
+     * @throws IOException Throws exception if file is busy
+     */
+    static ByteBuffer loadImage(File f, Memory mem, int addr) throws IOException {
+        ByteBuffer image = mapFile(f);
+        mem.mapImage(addr, image);
+        return image;
+    }
+
+    // Memory-maps a whole file read-only as a little-endian buffer
+    private static ByteBuffer mapFile(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Reads content in registers x0 to x31 and outputs to file as little-endian words.
+     * @param file: Save destination
+     * @param reg: Array of integers to output
+     * @throws IOException Throws exception if file is busy.
+     */
+    static void writeRegisters(File file, int[] reg) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        for (int val : reg) {
+            dos.writeInt(Integer.reverseBytes(val));
+        }
+        dos.close();
+    }
+
+    /**
+     * Reads a register dump written by writeRegisters.
+     * @param file: A .res file with 32 little-endian words
+     * @return Array of 32 register values. Missing words are read as 0.
+     * @throws IOException Throws exception if file is busy
+     */
+    static int[] readRegisters(File file) throws IOException {
+        int[] reg = new int[32];
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int len = (int) Math.min(file.length()/4, 32);
+        for(int i = 0; i < len; i++){
+            reg[i] = Integer.reverseBytes(dis.readInt());
+        }
+        dis.close();
+        return reg;
+    }
+}
@@ -0,0 +1,88 @@
+/* File: Block.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file defines a translated basic block: a run of instructions that ends with a
+ * branch, JAL, JALR, ECALL or an instruction only the single-step path implements.
+ * The block holds its own copy of the decoded operands and direct links to its successor blocks,
+ * so the CPU can go from one block to the next without looking it up in the BlockCache.
+ * Blocks that are executed often are compiled to JVM bytecode by the JitCompiler.
+ */
+
+package RISCVSimulator;
+
+final class Block {
+    static final int MAX_LENGTH = 256;  // Longest run of instructions translated into one block
+    static final byte NONE = 0, CALL = 1, RETURN = 2;  // Values of linkage
+
+    final int start;        // Address of the first instruction
+    final int length;       // Number of instructions, including the terminating instruction
+    final int[] op;         // Operation ids, see Op
+    final byte[] rd;
+    final byte[] rs1;
+    final byte[] rs2;
+    final int[] imm;
+    final int takenPc;      // Target address of a terminating branch or JAL
+    final int fallPc;       // Address of the instruction following the block
+    final byte linkage;     // CALL or RETURN if the block ends with a call or return, NONE otherwise
+
+    boolean valid = true;   // Cleared when the program writes into the instructions of this block
+    boolean compilable;     // False if the block's code has been overwritten before, or compiling it failed
+    int hotness;            // Number of times the block was interpreted
+    CompiledBlock compiled; // JVM bytecode version of the block, null until it is hot
+    Block taken;            // Chained successor at takenPc, null until first taken
+    Block fall;             // Chained successor at fallPc, null until first used
+    int jalrPc = -1;        // Last target of a terminating JALR
+    Block jalrTarget;       // Block at jalrPc
+    long executions;        // Complete executions while profiling, see Profiler
+
+    /**
+     * Constructor
+     * Copies length instructions from address start of the program, which must already be decoded.
+     */
+    Block(Program program, int start, int length) {
+        int first = program.index(start);
+        this.start = start;
+        this.length = length;
+        op = new int[length];
+        rd = new byte[length];
+        rs1 = new byte[length];
+        rs2 = new byte[length];
+        imm = new int[length];
+        System.arraycopy(program.op, first, op, 0, length);
+        System.arraycopy(program.rd, first, rd, 0, length);
+        System.arraycopy(program.rs1, first, rs1, 0, length);
+        System.arraycopy(program.rs2, first, rs2, 0, length);
+        System.arraycopy(program.imm, first, imm, 0, length);
+        int last = start + ((length - 1) << 2);
+        takenPc = last + imm[length - 1];   // Only meaningful for branches and JAL
+        fallPc = last + 4;
+        linkage = linkage(op[length - 1], rd[length - 1], rs1[length - 1]);
+    }
+
+    /**
+     * Classifies a jump by the calling convention: JAL or JALR writing ra is a call, JALR x0, 0(ra) is a return.
+     */
+    static byte linkage(int op, int rd, int rs1) {
+        if(op != Op.JAL && op != Op.JALR) return NONE;
+        if(rd == 1) return CALL;
+        return op == Op.JALR && rd == 0 && rs1 == 1 ? RETURN : NONE;
+    }
+
+    // Returns true if the instruction at address pc is part of this block
+    boolean contains(int pc) {
+        return Integer.compareUnsigned(pc - start, length << 2) < 0;
+    }
+
+    /**
+     * Returns true if an instruction with the given operation id must end a block.
+     */
+    static boolean endsBlock(int op) {
+        switch(op){
+            case Op.BEQ: case Op.BNE: case Op.BLT: case Op.BGE: case Op.BLTU: case Op.BGEU:
+            case Op.JAL: case Op.JALR: case Op.ECALL: case Op.OTHER:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
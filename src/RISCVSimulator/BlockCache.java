@@ -0,0 +1,85 @@
+/* File: BlockCache.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file discovers basic blocks in a program and caches their translation by start address.
+ * Blocks are invalidated when the program stores into the instructions they were translated from.
+ */
+
+package RISCVSimulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+final class BlockCache {
+    private final Program program;
+    private final Block[] blocks;                       // Translated block starting at each instruction, by index
+    private final ArrayList<Block> translated = new ArrayList<>();  // All valid blocks, used for invalidation
+    private final boolean[] written;                    // Instructions that have been overwritten by the program
+
+    BlockCache(Program program) {
+        this.program = program;
+        this.blocks = new Block[program.length];
+        this.written = new boolean[program.length];
+    }
+
+    /**
+     * Returns the block starting at address pc, translating it if it is not cached. pc must be in the program.
+     */
+    Block lookup(int pc) {
+        Block block = blocks[program.index(pc)];
+        if(block == null) block = translate(pc);
+        return block;
+    }
+
+    // Finds the end of the basic block starting at pc, decoding its instructions, and translates it
+    private Block translate(int pc) {
+        int first = program.index(pc);
+        int end = first;
+        int max = Math.min(program.length, first + Block.MAX_LENGTH);
+        while(end < max && !Block.endsBlock(program.op(end))) end++;
+        if(end == max) end--;   // Block is cut off by the end of the program or MAX_LENGTH
+        Block block = new Block(program, pc, end - first + 1);
+        block.compilable = true;
+        for(int i = first; i <= end; i++){
+            if(written[i]) block.compilable = false;    // Self-modifying code stays in the interpreter
+        }
+        blocks[first] = block;
+        translated.add(block);
+        return block;
+    }
+
+    /**
+     * Drops every block containing the instruction at address pc.
+     * Blocks translated later that contain pc are never compiled, so self-modifying code is interpreted.
+     * Blocks chained to a dropped block see that it is no longer valid and look up its replacement.
+     */
+    void invalidate(int pc) {
+        written[program.index(pc)] = true;
+        for(int i = translated.size() - 1; i >= 0; i--){
+            Block block = translated.get(i);
+            if(block.contains(pc)){
+                block.valid = false;
+                blocks[program.index(block.start)] = null;
+                translated.set(i, translated.get(translated.size() - 1));
+                translated.remove(translated.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Sets the execution counts of all blocks to zero, when a new profiler starts counting them.
+     * Dropped blocks are not reset, they are never executed again.
+     */
+    void clearExecutions() {
+        for(Block block : translated) block.executions = 0;
+    }
+
+    /**
+     * Drops every block. Unlike invalidate, the code may still be compiled when it is translated again.
+     */
+    void invalidateAll() {
+        for(Block block : translated) block.valid = false;
+        translated.clear();
+        Arrays.fill(blocks, null);
+    }
+}
@@ -0,0 +1,249 @@
+/* File: BranchPredictor.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file evaluates a branch predictor on the branches and jumps the CPU retires. It is a TraceListener,
+ * set with CPU.setTracer(), so the predictor only follows the functional run and costs nothing when it is not set.
+ * Conditional branches are predicted by one of three direction predictors of 2-bit saturating counters:
+ * - bimodal: a table indexed by the branch address
+ * - gshare: a table indexed by the branch address XOR the global history of branch outcomes
+ * - tournament: both of the above, and a table of 2-bit counters indexed by the branch address choosing between them
+ * A JAL's target is known when it is decoded, so it is always predicted. A JALR is predicted by the return address
+ * stack if it is a return, and otherwise by a table of the last target of each JALR.
+ * Calls and returns are identified by the link register hints of the RISC-V specification: a jump writing ra or t0
+ * pushes its return address, and a JALR reading ra or t0 (and not writing the same register) pops it.
+ * Every prediction is counted per branch address, so the report lists the branches mispredicted most often.
+ */
+
+package RISCVSimulator;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+final class BranchPredictor implements TraceListener {
+    enum Kind { BIMODAL, GSHARE, TOURNAMENT }
+
+    static final int DEFAULT_TABLE_BITS = 12;   // 4096 counters per table
+    static final int DEFAULT_HISTORY_BITS = 12;
+    static final int DEFAULT_RAS_DEPTH = 16;
+
+    final Kind kind;
+    final int tableBits;
+    final int historyBits;
+    final int rasDepth;         // 0 predicts returns like other JALRs
+
+    private final Program program;
+    private final int mask;
+    private final byte[] local;     // Bimodal counters, 0 to 3, taken from 2
+    private final byte[] global;    // Gshare counters
+    private final byte[] chooser;   // Tournament: gshare is used from 2
+    private final int[] targets;    // Last target of the JALRs by address
+    private int history;            // Outcomes of the last historyBits branches, the latest in bit 0
+    private final int[] ras;
+    private int rasTop;             // Number of pushes minus pops, the top is ras[(rasTop - 1) % rasDepth]
+    private int rasCount;           // Valid entries, at most rasDepth
+
+    // Totals
+    private long branches, branchMisses;
+    private long jumps;             // JALs, always predicted
+    private long returns, returnMisses;
+    private long indirect, indirectMisses;
+
+    // Per branch or JALR, by index
+    private final long[] executions;
+    private final long[] taken;
+    private final long[] misses;
+
+    /**
+     * Constructor
+     * @param tableBits: Each table has 2^tableBits entries
+     * @param historyBits: Branches in the global history of gshare, at most tableBits
+     * @param rasDepth: Entries of the return address stack, 0 for none
+     */
+    BranchPredictor(Program program, Kind kind, int tableBits, int historyBits, int rasDepth) {
+        if(tableBits < 1 || tableBits > 24 || historyBits < 0 || historyBits > tableBits || rasDepth < 0){
+            throw new IllegalArgumentException("Invalid branch predictor size");
+        }
+        this.program = program;
+        this.kind = kind;
+        this.tableBits = tableBits;
+        this.historyBits = historyBits;
+        this.rasDepth = rasDepth;
+        mask = (1 << tableBits) - 1;
+        local = kind != Kind.GSHARE ? new byte[1 << tableBits] : null;
+        global = kind != Kind.BIMODAL ? new byte[1 << tableBits] : null;
+        chooser = kind == Kind.TOURNAMENT ? new byte[1 << tableBits] : null;
+        targets = new int[1 << tableBits];
+        ras = new int[rasDepth];
+        executions = new long[program.length];
+        taken = new long[program.length];
+        misses = new long[program.length];
+        // Counters start weakly not taken, and the chooser weakly prefers the bimodal counters
+        if(local != null) Arrays.fill(local, (byte) 1);
+        if(global != null) Arrays.fill(global, (byte) 1);
+        if(chooser != null) Arrays.fill(chooser, (byte) 1);
+    }
+
+    /**
+     * Returns a predictor configured by a comma-separated list: the kind (bimodal, gshare or tournament) and
+     * optionally bits=n (table size), history=n and ras=n (stack depth), e.g. "gshare,bits=14,history=10".
+     * @throws IllegalArgumentException If a setting is unknown or its value invalid
+     */
+    static BranchPredictor parse(Program program, String settings) {
+        Kind kind = null;
+        int tableBits = DEFAULT_TABLE_BITS, historyBits = -1, rasDepth = DEFAULT_RAS_DEPTH;
+        for(String setting : settings.split(",")){
+            String[] kv = setting.split("=", 2);
+            if(kv.length == 1){
+                switch(setting){
+                    case "bimodal":    kind = Kind.BIMODAL; break;
+                    case "gshare":     kind = Kind.GSHARE; break;
+                    case "tournament": kind = Kind.TOURNAMENT; break;
+                    default: throw new IllegalArgumentException("Unknown branch predictor " + setting);
+                }
+                continue;
+            }
+            if(!kv[1].matches("[0-9]{1,4}")) throw new IllegalArgumentException("Invalid branch predictor setting " + setting);
+            int value = Integer.parseInt(kv[1]);
+            switch(kv[0]){
+                case "bits":    tableBits = value; break;
+                case "history": historyBits = value; break;
+                case "ras":     rasDepth = value; break;
+                default: throw new IllegalArgumentException("Unknown branch predictor setting " + setting);
+            }
+        }
+        if(kind == null) throw new IllegalArgumentException("No branch predictor in " + settings);
+        if(historyBits < 0) historyBits = Math.min(DEFAULT_HISTORY_BITS, tableBits);
+        return new BranchPredictor(program, kind, tableBits, historyBits, rasDepth);
+    }
+
+    @Override
+    public void retired(int pc, int op, int rd, int rs1, int rs2, int address, int nextPc) {
+        if(op >= Op.BEQ && op <= Op.BGEU) branch(pc, nextPc != pc + 4);
+        else if(op == Op.JAL){
+            jumps++;
+            if(link(rd)) push(pc + 4);
+        } else if(op == Op.JALR) jalr(pc, rd, rs1, nextPc);
+    }
+
+    // Predicts and updates the conditional branch at pc
+    private void branch(int pc, boolean outcome) {
+        int index = (pc >>> 2) & mask;
+        int shared = ((pc >>> 2) ^ history) & mask;
+        boolean prediction;
+        switch(kind){
+            case BIMODAL:
+                prediction = local[index] >= 2;
+                local[index] = count(local[index], outcome);
+                break;
+            case GSHARE:
+                prediction = global[shared] >= 2;
+                global[shared] = count(global[shared], outcome);
+                break;
+            default: {
+                boolean bimodal = local[index] >= 2, gshare = global[shared] >= 2;
+                prediction = chooser[index] >= 2 ? gshare : bimodal;
+                if(bimodal != gshare) chooser[index] = count(chooser[index], gshare == outcome);
+                local[index] = count(local[index], outcome);
+                global[shared] = count(global[shared], outcome);
+            }
+        }
+        history = ((history << 1) | (outcome ? 1 : 0)) & ((1 << historyBits) - 1);
+
+        int i = program.index(pc);
+        executions[i]++;
+        branches++;
+        if(outcome) taken[i]++;
+        if(prediction != outcome){
+            misses[i]++;
+            branchMisses++;
+        }
+    }
+
+    // Predicts the target of the JALR at pc by the return address stack or the last target
+    private void jalr(int pc, int rd, int rs1, int target) {
+        boolean pop = link(rs1) && rs1 != rd && rasDepth > 0;
+        int predicted;
+        if(pop){
+            predicted = -1;     // An empty stack mispredicts
+            if(rasCount > 0){
+                predicted = ras[Math.floorMod(--rasTop, rasDepth)];
+                rasCount--;
+            }
+            returns++;
+        } else {
+            predicted = targets[(pc >>> 2) & mask];
+            indirect++;
+        }
+        targets[(pc >>> 2) & mask] = target;
+        if(link(rd)) push(pc + 4);
+
+        int i = program.index(pc);
+        executions[i]++;
+        taken[i]++;
+        if(predicted != target){
+            misses[i]++;
+            if(pop) returnMisses++;
+            else indirectMisses++;
+        }
+    }
+
+    // Pushes a return address, overwriting the oldest entry when the stack is full
+    private void push(int address) {
+        if(rasDepth == 0) return;
+        ras[Math.floorMod(rasTop++, rasDepth)] = address;
+        if(rasCount < rasDepth) rasCount++;
+    }
+
+    // Returns true for the link registers ra and t0
+    private static boolean link(int reg) {
+        return reg == 1 || reg == 5;
+    }
+
+    // Moves a 2-bit saturating counter towards the outcome
+    private static byte count(byte counter, boolean up) {
+        return (byte) (up ? Math.min(counter + 1, 3) : Math.max(counter - 1, 0));
+    }
+
+    /**
+     * Returns the fraction of conditional branches that were mispredicted.
+     */
+    double branchMissRate() {
+        return branches == 0 ? 0 : (double) branchMisses / branches;
+    }
+
+    /**
+     * Writes the configuration, the misprediction rates by kind of control transfer and the branches and JALRs
+     * mispredicted most often.
+     * @param top: Number of branches listed
+     */
+    void writeReport(PrintWriter out, int top) {
+        out.printf("%s branch predictor, 2^%d entries per table%s, %s%n", kind.toString().toLowerCase(), tableBits,
+                kind == Kind.BIMODAL ? "" : ", " + historyBits + " bits of history",
+                rasDepth == 0 ? "no return address stack" : rasDepth + "-entry return address stack");
+        out.printf("%-20s %14s %14s %9s%n", "", "executed", "mispredicted", "rate");
+        out.printf("%-20s %14d %14d %8.3f%%%n", "conditional branches", branches, branchMisses, percent(branchMisses, branches));
+        out.printf("%-20s %14d %14d %8.3f%%%n", "returns", returns, returnMisses, percent(returnMisses, returns));
+        out.printf("%-20s %14d %14d %8.3f%%%n", "other jalr", indirect, indirectMisses, percent(indirectMisses, indirect));
+        out.printf("%-20s %14d %14d %8.3f%%%n", "jal", jumps, 0, 0.0);
+
+        List<Integer> sites = new ArrayList<>();
+        for(int i = 0; i < misses.length; i++){
+            if(misses[i] > 0) sites.add(i);
+        }
+        sites.sort((a, b) -> Long.compare(misses[b], misses[a]));
+        out.printf("%-10s %14s %7s %14s %9s  %-28s %s%n", "address", "executions", "taken", "mispredicted", "rate",
+                "location", "instruction");
+        for(int i : sites.subList(0, Math.min(top, sites.size()))){
+            int address = program.address(i);
+            out.printf("0x%08x %14d %6.2f%% %14d %8.3f%%  %-28s %s%n", address, executions[i],
+                    percent(taken[i], executions[i]), misses[i], percent(misses[i], executions[i]),
+                    program.symbols.describe(address), new Instruction(program.word(i)).getAssemblyString());
+        }
+    }
+
+    private static double percent(long count, long total) {
+        return total == 0 ? 0 : count * 100.0 / total;
+    }
+}
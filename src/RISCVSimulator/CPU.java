@@ -2,35 +2,90 @@
  * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
  *
  * The following file handles the execution of all the implemented instructions. 
+ * Besides RV32I, the CPU implements the RV32A atomics, FENCE, FENCE.I, and reading the hart ID through the mhartid CSR.
  */
 
 package RISCVSimulator;
 
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntBinaryOperator;
+
 public class CPU {
-    int pc = 0;                     // Program counter
+    private static final int MHARTID = 0xF14;   // CSR number of the hart ID
+
+    // Operations of the AMO instructions, applied to the old word and rs2
+    private static final IntBinaryOperator AMO_SWAP = (old, value) -> value;
+    private static final IntBinaryOperator AMO_ADD = Integer::sum;
+    private static final IntBinaryOperator AMO_XOR = (old, value) -> old ^ value;
+    private static final IntBinaryOperator AMO_AND = (old, value) -> old & value;
+    private static final IntBinaryOperator AMO_OR = (old, value) -> old | value;
+    private static final IntBinaryOperator AMO_MIN = Math::min;
+    private static final IntBinaryOperator AMO_MAX = Math::max;
+    private static final IntBinaryOperator AMO_MINU = (old, value) -> Integer.compareUnsigned(old, value) <= 0 ? old : value;
+    private static final IntBinaryOperator AMO_MAXU = (old, value) -> Integer.compareUnsigned(old, value) >= 0 ? old : value;
+
+    final int hartId;               // Read by csrr rd, mhartid
+    int pc;                         // Program counter, a byte address
     int prevPc;                     // Previous pc
     int[] reg = new int[32];        // RISC-V registers x0 to x31
-    private Instruction[] program;  // Array of all program instructions
+    private Program program;        // All program instructions
+    private BlockCache blocks;      // Translated basic blocks of program
+    private int jitThreshold = JitCompiler.DEFAULT_THRESHOLD; // Block executions before compiling, 0 disables JIT
     private Memory memory;          // Memory byte array
+    private OutputSink out = OutputSink.SYSTEM_OUT; // Output of the printing ECALLs
+    private volatile boolean stopRequested; // Set by requestStop(), run() returns after the current block
+    private Profiler profiler;      // Counts executed blocks and calls in run(), null when not profiling
+    private TraceListener tracer;   // Sees every instruction retired by run(), null when not tracing
+
+    // Timer thread of the run time limits, created on first use
+    private static final class Watchdog {
+        static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "RISC-V watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static {
+            TIMER.setRemoveOnCancelPolicy(true);   // Runs that finish in time leave no pending tasks behind
+        }
+    }
 
     /**
      * CPU constructor
-     * Sets stack pointer to last address in memory (last index of byte array memory.getMemory()).
+     * Sets stack pointer to last address in memory (memory.size() - 1) and pc and prevPc to the program's entry point.
 	 * Initializes memory and program to input parameters. 
      */
-    public CPU(Memory mem, Instruction[] program) {
+    public CPU(Memory mem, Program program) {
+        this(mem, program, 0);
+    }
+
+    /**
+     * CPU constructor for hart hartId of a multi-hart machine, see Machine.
+     * The memory and program must only be used by this CPU's thread.
+     */
+    CPU(Memory mem, Program program, int hartId) {
+        this.hartId = hartId;
         this.memory = mem;                      // Initialize Memory object
-        this.program = program;                 // Initialize array of Instruction objects
-        reg[2] = memory.getMemory().length - 1; // Initialize stack pointer to point at last address. 
+        this.program = program;                 // Initialize program
+        this.blocks = program.blocks;
+        pc = program.entry;
+        prevPc = program.entry;                 // Nothing executed yet, also what rewinding the first step restores
+        reg[2] = (int) (memory.size() - 1);     // Initialize stack pointer to point at last address. 
+        // Self-modifying code must be re-decoded. Starts 3 bytes early to catch stores straddling the first word.
+        memory.watchCode(program.base - 3, program.end, this::codeWritten);
     }
 
     /**
-     * Executes one instruction given by the Instruction array 'program' at index given by the program counter 'pc'. 
+     * Executes one instruction of the program at the address given by the program counter 'pc'.
      * Uses the opcode field of the instruction to determine which type of instruction it is and call that method.
      */
     public void executeInstruction(){
         prevPc = pc;
-        Instruction inst = program[pc];
+        Instruction inst = program.instructionAt(pc);
         switch(inst.opcode){
             // R-type instructions
             case 0b0110011: // ADD / SUB / SLL / SLT / SLTU / XOR / SRL / SRA / OR / AND
@@ -39,14 +94,15 @@ public class CPU {
 
             // J-type instruction
             case 0b1101111: //JAL
-                reg[inst.rd] = (pc+1)<<2; // Store address of next instruction in bytes
-                pc += inst.imm>>2;
+                reg[inst.rd] = pc + 4; // Store address of next instruction
+                pc += inst.imm;
                 break;
                 
             // I-type instructions
             case 0b1100111: // JALR
-                reg[inst.rd] = (pc+1)<<2;
-                pc = ((reg[inst.rs1] + inst.imm) & 0xFFFFFFFE)>>2;
+                int target = (reg[inst.rs1] + inst.imm) & 0xFFFFFFFE; // Read rs1 before rd is written
+                reg[inst.rd] = pc + 4;
+                pc = target;
                 break;
             case 0b0000011: // LB / LH / LW / LBU / LHU
                 iTypeLoad(inst);
@@ -54,8 +110,17 @@ public class CPU {
             case 0b0010011: // ADDI / SLTI / SLTIU / XORI / ORI / ANDI / SLLI / SRLI / SRAI
                 iTypeInteger(inst);
                 break;
-            case 0b1110011: // ECALL
-                iTypeEcall();
+            case 0b1110011: // ECALL / CSRRW / CSRRS / CSRRC / CSRRWI / CSRRSI / CSRRCI
+                if(inst.funct3 == 0) iTypeEcall();
+                else csr(inst);
+                break;
+            case 0b0001111: // FENCE / FENCE.I
+                fence(inst);
+                break;
+
+            // RV32A instructions
+            case 0b0101111: // LR.W / SC.W / AMO*.W
+                atomic(inst);
                 break;
 
             //S-type instructions
@@ -71,16 +136,540 @@ public class CPU {
             //U-type instructions
             case 0b0110111: //LUI
                 reg[inst.rd] = inst.imm;
-                pc++;
+                pc += 4;
                 break;
             case 0b0010111: //AUIPC
-                reg[inst.rd] = (pc << 2) + inst.imm; // Shift pc because we count in 4 byte words
-                pc++;
+                reg[inst.rd] = pc + inst.imm;
+                pc += 4;
                 break;
         }
         reg[0] = 0; // x0 must always be 0
     }
 
+    /**
+     * Executes basic blocks until the program counter leaves the program.
+     * Blocks are translated once by the BlockCache. After a block, the CPU follows the block's link to its successor
+     * and only looks the successor up in the cache the first time, or when the link was invalidated.
+     * Blocks interpreted jitThreshold times are compiled to JVM bytecode and run compiled from then on.
+     * @return Number of retired instructions
+     */
+    public long run() {
+        return run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes basic blocks like run(), but stops after budget instructions have retired, or after the current block
+     * once requestStop() was called.
+     * When fewer instructions than the next block holds are left, they are executed one at a time, so the budget is exact.
+     * Calling run(budget) again continues where it stopped, so a scheduler can run many CPUs in slices.
+     * prevPc is left at the last retired instruction, like after executeInstruction().
+     * @return Number of retired instructions
+     */
+    public long run(long budget) {
+        if(tracer != null) return runTraced(budget);
+        if(profiler != null) return runProfiled(budget);
+        final Program program = this.program;
+        long retired = 0;
+        int pc = this.pc;
+        int prev = prevPc;
+        if(!program.contains(pc)) return 0;
+        Block block = blocks.lookup(pc);
+
+        while(true){
+            if(block.length > budget - retired){
+                // The budget ends inside this block
+                while(retired < budget && program.contains(pc)){
+                    prev = pc;
+                    pc = step(pc);
+                    retired++;
+                }
+                break;
+            }
+            if(block.compiled != null){
+                pc = block.compiled.execute(this, reg, memory, block);
+            } else {
+                pc = executeBlock(block);
+                if(jitThreshold > 0 && ++block.hotness == jitThreshold && block.compilable){
+                    block.compiled = JitCompiler.compile(block);
+                }
+            }
+            int executed = block.valid ? block.length : (pc - block.start) >> 2; // Block stops early if it overwrote itself
+            retired += executed;
+            prev = block.start + ((executed - 1) << 2);
+            if(!program.contains(pc) || stopRequested) break;
+
+            block = successor(block, pc);
+        }
+        this.pc = pc;
+        this.prevPc = prev;
+        stopRequested = false;
+        return retired;
+    }
+
+    /**
+     * The run loop of run(budget) while profiling, reporting every block and single-stepped instruction to the profiler.
+     * Kept apart from run(budget) so profiling costs nothing when it is off.
+     */
+    private long runProfiled(long budget) {
+        final Program program = this.program;
+        final Profiler profiler = this.profiler;
+        long retired = 0;
+        int pc = this.pc;
+        if(!program.contains(pc)) return 0;
+        Block block = blocks.lookup(pc);
+
+        while(true){
+            if(block.length > budget - retired){
+                while(retired < budget && program.contains(pc)){
+                    int next = step(pc);
+                    profiler.instruction(pc, next, ++retired);
+                    pc = next;
+                }
+                break;
+            }
+            if(block.compiled != null){
+                pc = block.compiled.execute(this, reg, memory, block);
+            } else {
+                pc = executeBlock(block);
+                if(jitThreshold > 0 && ++block.hotness == jitThreshold && block.compilable){
+                    block.compiled = JitCompiler.compile(block);
+                }
+            }
+            int executed = block.valid ? block.length : (pc - block.start) >> 2;
+            retired += executed;
+            if(executed == block.length){
+                if(block.executions++ == 0) profiler.firstExecution(block);
+                if(block.linkage != Block.NONE) profiler.control(block, pc, retired);
+            } else {
+                profiler.partial(block, executed);
+            }
+            if(!program.contains(pc) || stopRequested) break;
+            block = successor(block, pc);
+        }
+        this.pc = pc;
+        stopRequested = false;
+        profiler.runEnded(retired);
+        return retired;
+    }
+
+    /**
+     * The run loop of run(budget) while tracing: interprets one instruction at a time like interpret() and reports
+     * each retired instruction to the trace listener, and to the profiler if there is one.
+     * Stops on requestStop() after the next jump or taken branch, since straight-line code soon leaves the program.
+     * Kept apart from run(budget) so tracing costs nothing when it is off.
+     */
+    private long runTraced(long budget) {
+        final TraceListener tracer = this.tracer;
+        final Profiler profiler = this.profiler;
+        final int[] ops = program.op;
+        final byte[] rds = program.rd;
+        final byte[] rs1s = program.rs1;
+        final byte[] rs2s = program.rs2;
+        final int[] imms = program.imm;
+        final int[] reg = this.reg;
+        final Memory memory = this.memory;
+        final int base = program.base;
+        final int length = program.length;
+        int pc = this.pc;
+        long retired = 0;
+
+        int i;
+        while(retired < budget && (i = (pc - base) >>> 2) < length){
+            int op = ops[i];
+            if(op == Op.UNDECODED){
+                program.decode(i);
+                continue;   // Dispatch again on the decoded instruction
+            }
+            int rd = rds[i], rs1 = rs1s[i], rs2 = rs2s[i], imm = imms[i];
+            int address = 0;
+            int next = pc + 4;
+            switch(op){
+                case Op.ADD:   reg[rd] = reg[rs1] + reg[rs2]; break;
+                case Op.SUB:   reg[rd] = reg[rs1] - reg[rs2]; break;
+                case Op.SLL:   reg[rd] = reg[rs1] << reg[rs2]; break;
+                case Op.SLT:   reg[rd] = reg[rs1] < reg[rs2] ? 1 : 0; break;
+                case Op.SLTU:  reg[rd] = Integer.compareUnsigned(reg[rs1], reg[rs2]) < 0 ? 1 : 0; break;
+                case Op.XOR:   reg[rd] = reg[rs1] ^ reg[rs2]; break;
+                case Op.SRL:   reg[rd] = reg[rs1] >>> reg[rs2]; break;
+                case Op.SRA:   reg[rd] = reg[rs1] >> reg[rs2]; break;
+                case Op.OR:    reg[rd] = reg[rs1] | reg[rs2]; break;
+                case Op.AND:   reg[rd] = reg[rs1] & reg[rs2]; break;
+
+                case Op.ADDI:  reg[rd] = reg[rs1] + imm; break;
+                case Op.SLTI:  reg[rd] = reg[rs1] < imm ? 1 : 0; break;
+                case Op.SLTIU: reg[rd] = Integer.compareUnsigned(reg[rs1], imm) < 0 ? 1 : 0; break;
+                case Op.XORI:  reg[rd] = reg[rs1] ^ imm; break;
+                case Op.ORI:   reg[rd] = reg[rs1] | imm; break;
+                case Op.ANDI:  reg[rd] = reg[rs1] & imm; break;
+                case Op.SLLI:  reg[rd] = reg[rs1] << imm; break;
+                case Op.SRLI:  reg[rd] = reg[rs1] >>> imm; break;
+                case Op.SRAI:  reg[rd] = reg[rs1] >> imm; break;
+
+                case Op.LB:    reg[rd] = memory.getByte(address = reg[rs1] + imm); break;
+                case Op.LH:    reg[rd] = memory.getHalfWord(address = reg[rs1] + imm); break;
+                case Op.LW:    reg[rd] = memory.getWord(address = reg[rs1] + imm); break;
+                case Op.LBU:   reg[rd] = memory.getByte(address = reg[rs1] + imm) & 0xFF; break;
+                case Op.LHU:   reg[rd] = memory.getHalfWord(address = reg[rs1] + imm) & 0xFFFF; break;
+
+                case Op.SB:    memory.storeByte(address = reg[rs1] + imm, (byte) reg[rs2]); break;
+                case Op.SH:    memory.storeHalfWord(address = reg[rs1] + imm, (short) reg[rs2]); break;
+                case Op.SW:    memory.storeWord(address = reg[rs1] + imm, reg[rs2]); break;
+
+                case Op.BEQ:   if(reg[rs1] == reg[rs2]) next = pc + imm; break;
+                case Op.BNE:   if(reg[rs1] != reg[rs2]) next = pc + imm; break;
+                case Op.BLT:   if(reg[rs1] < reg[rs2]) next = pc + imm; break;
+                case Op.BGE:   if(reg[rs1] >= reg[rs2]) next = pc + imm; break;
+                case Op.BLTU:  if(Integer.compareUnsigned(reg[rs1], reg[rs2]) < 0) next = pc + imm; break;
+                case Op.BGEU:  if(Integer.compareUnsigned(reg[rs1], reg[rs2]) >= 0) next = pc + imm; break;
+
+                case Op.JAL:
+                    reg[rd] = pc + 4;
+                    next = pc + imm;
+                    break;
+                case Op.JALR:
+                    next = (reg[rs1] + imm) & 0xFFFFFFFE; // Read rs1 before rd is written
+                    reg[rd] = pc + 4;
+                    break;
+                case Op.LUI:   reg[rd] = imm; break;
+                case Op.AUIPC: reg[rd] = pc + imm; break;
+
+                case Op.ECALL:
+                    next = step(pc);
+                    break;
+                default:
+                    if(program.atomic(i)) address = reg[rs1];
+                    next = step(pc);
+                    break;
+            }
+            reg[0] = 0; // x0 must always be 0
+            retired++;
+            tracer.retired(pc, op, rd, rs1, rs2, address, next);
+            if(profiler != null) profiler.instruction(pc, next, retired);
+            boolean jumped = next != pc + 4;
+            pc = next;
+            if(jumped && stopRequested) break;
+        }
+        this.pc = pc;
+        stopRequested = false;
+        tracer.runEnded(retired);
+        if(profiler != null) profiler.runEnded(retired);
+        return retired;
+    }
+
+    /**
+     * Returns the block at pc following block, through the block's links, used by every run loop.
+     * The successor is only looked up in the block cache if the link is missing or stale.
+     */
+    private Block successor(Block block, int pc) {
+        Block next;
+        if(pc == block.fallPc){
+            next = block.fall;
+            if(next == null || !next.valid) next = block.fall = blocks.lookup(pc);
+        } else if(pc == block.takenPc){
+            next = block.taken;
+            if(next == null || !next.valid) next = block.taken = blocks.lookup(pc);
+        } else {
+            next = block.jalrTarget;
+            if(pc != block.jalrPc || next == null || !next.valid){
+                next = block.jalrTarget = blocks.lookup(pc);
+                block.jalrPc = pc;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Profiles the following calls of run() with the given profiler, or stops profiling if it is null.
+     * The profiler must have been created for this CPU's program.
+     */
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Reports every instruction retired by the following calls of run() to the given listener, or stops tracing
+     * if it is null. While tracing, run() interprets instead of executing blocks, so it also never compiles them.
+     */
+    void setTracer(TraceListener tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Runs the program until it exits, maxInstructions have retired or timeoutMillis of wall time have passed.
+     * Neither limit adds work per instruction: the run loop counts instructions per block, and the timeout is
+     * enforced by a watchdog thread calling requestStop(), which the run loop checks after every block.
+     * A requestStop() from another thread also ends the run, which is then reported as stopped.
+     * @param maxInstructions: Instruction budget, Long.MAX_VALUE for none
+     * @param timeoutMillis: Wall-clock limit, 0 for none
+     * @return How the run ended, with the number of retired instructions and the final state
+     */
+    RunResult run(long maxInstructions, long timeoutMillis) {
+        stopRequested = false;
+        AtomicBoolean fired = new AtomicBoolean();  // Set by the watchdog once its requestStop() is done
+        ScheduledFuture<?> alarm = timeoutMillis > 0 ? Watchdog.TIMER.schedule(() -> {
+            requestStop();
+            fired.set(true);
+        }, timeoutMillis, TimeUnit.MILLISECONDS) : null;
+        long retired = run(maxInstructions);
+        if(alarm != null && !alarm.cancel(false)){
+            while(!fired.get()) Thread.yield();     // Already firing, let it finish before clearing its stop
+        }
+        stopRequested = false;  // A stop that came after the last block must not end the next run
+        return result(retired, maxInstructions, fired.get());
+    }
+
+    /**
+     * Describes the state after a run of retired instructions with the given budget.
+     * A program that has neither exited nor used up its budget was stopped by the time limit if timedOut,
+     * otherwise by requestStop().
+     * @param timedOut: True if the run's time limit has passed
+     */
+    RunResult result(long retired, long maxInstructions, boolean timedOut) {
+        RunResult.Status status = !running() ? RunResult.Status.EXITED
+                : retired >= maxInstructions ? RunResult.Status.INSTRUCTION_LIMIT
+                : timedOut ? RunResult.Status.TIME_LIMIT : RunResult.Status.STOPPED;
+        return new RunResult(status, retired, pc, reg.clone(), program.symbols.describe(pc));
+    }
+
+    /**
+     * Asks run() to return after the current block. May be called from any thread.
+     */
+    void requestStop() {
+        stopRequested = true;
+    }
+
+    // Returns true until the program counter leaves the program, i.e. the program has exited
+    boolean running() {
+        return program.contains(pc);
+    }
+
+    /**
+     * Executes all instructions of a block and returns the address of the next instruction.
+     * If a store overwrites an instruction of the block itself, execution stops right after the store.
+     */
+    private int executeBlock(Block block) {
+        final int[] ops = block.op;
+        final byte[] rds = block.rd;
+        final byte[] rs1s = block.rs1;
+        final byte[] rs2s = block.rs2;
+        final int[] imms = block.imm;
+        final int[] reg = this.reg;
+        final Memory memory = this.memory;
+        final int last = block.length - 1;
+
+        // Straight-line part of the block
+        for(int i = 0; i < last; i++){
+            int rd = rds[i], rs1 = rs1s[i], rs2 = rs2s[i], imm = imms[i];
+            switch(ops[i]){
+                case Op.ADD:   reg[rd] = reg[rs1] + reg[rs2]; break;
+                case Op.SUB:   reg[rd] = reg[rs1] - reg[rs2]; break;
+                case Op.SLL:   reg[rd] = reg[rs1] << reg[rs2]; break;
+                case Op.SLT:   reg[rd] = reg[rs1] < reg[rs2] ? 1 : 0; break;
+                case Op.SLTU:  reg[rd] = Integer.compareUnsigned(reg[rs1], reg[rs2]) < 0 ? 1 : 0; break;
+                case Op.XOR:   reg[rd] = reg[rs1] ^ reg[rs2]; break;
+                case Op.SRL:   reg[rd] = reg[rs1] >>> reg[rs2]; break;
+                case Op.SRA:   reg[rd] = reg[rs1] >> reg[rs2]; break;
+                case Op.OR:    reg[rd] = reg[rs1] | reg[rs2]; break;
+                case Op.AND:   reg[rd] = reg[rs1] & reg[rs2]; break;
+
+                case Op.ADDI:  reg[rd] = reg[rs1] + imm; break;
+                case Op.SLTI:  reg[rd] = reg[rs1] < imm ? 1 : 0; break;
+                case Op.SLTIU: reg[rd] = Integer.compareUnsigned(reg[rs1], imm) < 0 ? 1 : 0; break;
+                case Op.XORI:  reg[rd] = reg[rs1] ^ imm; break;
+                case Op.ORI:   reg[rd] = reg[rs1] | imm; break;
+                case Op.ANDI:  reg[rd] = reg[rs1] & imm; break;
+                case Op.SLLI:  reg[rd] = reg[rs1] << imm; break;
+                case Op.SRLI:  reg[rd] = reg[rs1] >>> imm; break;
+                case Op.SRAI:  reg[rd] = reg[rs1] >> imm; break;
+
+                case Op.LB:    reg[rd] = memory.getByte(reg[rs1] + imm); break;
+                case Op.LH:    reg[rd] = memory.getHalfWord(reg[rs1] + imm); break;
+                case Op.LW:    reg[rd] = memory.getWord(reg[rs1] + imm); break;
+                case Op.LBU:   reg[rd] = memory.getByte(reg[rs1] + imm) & 0xFF; break;
+                case Op.LHU:   reg[rd] = memory.getHalfWord(reg[rs1] + imm) & 0xFFFF; break;
+
+                case Op.SB:
+                    memory.storeByte(reg[rs1] + imm, (byte) reg[rs2]);
+                    if(!block.valid) return block.start + ((i + 1) << 2);
+                    break;
+                case Op.SH:
+                    memory.storeHalfWord(reg[rs1] + imm, (short) reg[rs2]);
+                    if(!block.valid) return block.start + ((i + 1) << 2);
+                    break;
+                case Op.SW:
+                    memory.storeWord(reg[rs1] + imm, reg[rs2]);
+                    if(!block.valid) return block.start + ((i + 1) << 2);
+                    break;
+
+                case Op.LUI:   reg[rd] = imm; break;
+                case Op.AUIPC: reg[rd] = block.start + (i << 2) + imm; break;
+            }
+            reg[0] = 0; // x0 must always be 0
+        }
+
+        // Terminating instruction
+        int pc = block.start + (last << 2);
+        int rd = rds[last], rs1 = rs1s[last], rs2 = rs2s[last];
+        switch(ops[last]){
+            case Op.BEQ:  return reg[rs1] == reg[rs2] ? block.takenPc : block.fallPc;
+            case Op.BNE:  return reg[rs1] != reg[rs2] ? block.takenPc : block.fallPc;
+            case Op.BLT:  return reg[rs1] < reg[rs2] ? block.takenPc : block.fallPc;
+            case Op.BGE:  return reg[rs1] >= reg[rs2] ? block.takenPc : block.fallPc;
+            case Op.BLTU: return Integer.compareUnsigned(reg[rs1], reg[rs2]) < 0 ? block.takenPc : block.fallPc;
+            case Op.BGEU: return Integer.compareUnsigned(reg[rs1], reg[rs2]) >= 0 ? block.takenPc : block.fallPc;
+            case Op.JAL:
+                reg[rd] = pc + 4;
+                reg[0] = 0;
+                return block.takenPc;
+            case Op.JALR: {
+                int target = (reg[rs1] + imms[last]) & 0xFFFFFFFE;
+                reg[rd] = pc + 4;
+                reg[0] = 0;
+                return target;
+            }
+            default:
+                // ECALL, instructions only executeInstruction() implements, and blocks cut off by Block.MAX_LENGTH
+                return step(pc);
+        }
+    }
+
+    /**
+     * Executes the single instruction at address pc through executeInstruction() and returns the next pc.
+     */
+    int step(int pc) {
+        this.pc = pc;
+        executeInstruction();
+        return this.pc;
+    }
+
+    /**
+     * Sets where the printing ECALLs write, System.out by default.
+     */
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     * Sets how many times a basic block is interpreted before it is compiled to JVM bytecode.
+     * A threshold of 0 disables compiling.
+     */
+    public void setJitThreshold(int threshold) {
+        this.jitThreshold = threshold;
+    }
+
+    /**
+     * Executes instructions one at a time until the program counter leaves the program.
+     * Dispatches on the operation ids of the program's decode cache and reads operands from its parallel arrays,
+     * keeping pc, registers and memory in locals.
+     * Instructions the fast path does not implement are handed to executeInstruction().
+     * @return Number of retired instructions
+     */
+    public long interpret() {
+        final int[] ops = program.op;
+        final byte[] rds = program.rd;
+        final byte[] rs1s = program.rs1;
+        final byte[] rs2s = program.rs2;
+        final int[] imms = program.imm;
+        final int[] reg = this.reg;
+        final Memory memory = this.memory;
+        final int base = program.base;
+        final int length = program.length;
+        int pc = this.pc;
+        int prev = prevPc;
+        long retired = 0;
+
+        int i;
+        while((i = (pc - base) >>> 2) < length){   // Index of pc in the decode cache, see Program.index
+            int rd = rds[i], rs1 = rs1s[i], rs2 = rs2s[i], imm = imms[i];
+            prev = pc;
+            switch(ops[i]){
+                case Op.ADD:   reg[rd] = reg[rs1] + reg[rs2]; pc += 4; break;
+                case Op.SUB:   reg[rd] = reg[rs1] - reg[rs2]; pc += 4; break;
+                case Op.SLL:   reg[rd] = reg[rs1] << reg[rs2]; pc += 4; break;
+                case Op.SLT:   reg[rd] = reg[rs1] < reg[rs2] ? 1 : 0; pc += 4; break;
+                case Op.SLTU:  reg[rd] = Integer.compareUnsigned(reg[rs1], reg[rs2]) < 0 ? 1 : 0; pc += 4; break;
+                case Op.XOR:   reg[rd] = reg[rs1] ^ reg[rs2]; pc += 4; break;
+                case Op.SRL:   reg[rd] = reg[rs1] >>> reg[rs2]; pc += 4; break;
+                case Op.SRA:   reg[rd] = reg[rs1] >> reg[rs2]; pc += 4; break;
+                case Op.OR:    reg[rd] = reg[rs1] | reg[rs2]; pc += 4; break;
+                case Op.AND:   reg[rd] = reg[rs1] & reg[rs2]; pc += 4; break;
+
+                case Op.ADDI:  reg[rd] = reg[rs1] + imm; pc += 4; break;
+                case Op.SLTI:  reg[rd] = reg[rs1] < imm ? 1 : 0; pc += 4; break;
+                case Op.SLTIU: reg[rd] = Integer.compareUnsigned(reg[rs1], imm) < 0 ? 1 : 0; pc += 4; break;
+                case Op.XORI:  reg[rd] = reg[rs1] ^ imm; pc += 4; break;
+                case Op.ORI:   reg[rd] = reg[rs1] | imm; pc += 4; break;
+                case Op.ANDI:  reg[rd] = reg[rs1] & imm; pc += 4; break;
+                case Op.SLLI:  reg[rd] = reg[rs1] << imm; pc += 4; break;
+                case Op.SRLI:  reg[rd] = reg[rs1] >>> imm; pc += 4; break;
+                case Op.SRAI:  reg[rd] = reg[rs1] >> imm; pc += 4; break;
+
+                case Op.LB:    reg[rd] = memory.getByte(reg[rs1] + imm); pc += 4; break;
+                case Op.LH:    reg[rd] = memory.getHalfWord(reg[rs1] + imm); pc += 4; break;
+                case Op.LW:    reg[rd] = memory.getWord(reg[rs1] + imm); pc += 4; break;
+                case Op.LBU:   reg[rd] = memory.getByte(reg[rs1] + imm) & 0xFF; pc += 4; break;
+                case Op.LHU:   reg[rd] = memory.getHalfWord(reg[rs1] + imm) & 0xFFFF; pc += 4; break;
+
+                case Op.SB:    memory.storeByte(reg[rs1] + imm, (byte) reg[rs2]); pc += 4; break;
+                case Op.SH:    memory.storeHalfWord(reg[rs1] + imm, (short) reg[rs2]); pc += 4; break;
+                case Op.SW:    memory.storeWord(reg[rs1] + imm, reg[rs2]); pc += 4; break;
+
+                case Op.BEQ:   pc += reg[rs1] == reg[rs2] ? imm : 4; break;
+                case Op.BNE:   pc += reg[rs1] != reg[rs2] ? imm : 4; break;
+                case Op.BLT:   pc += reg[rs1] < reg[rs2] ? imm : 4; break;
+                case Op.BGE:   pc += reg[rs1] >= reg[rs2] ? imm : 4; break;
+                case Op.BLTU:  pc += Integer.compareUnsigned(reg[rs1], reg[rs2]) < 0 ? imm : 4; break;
+                case Op.BGEU:  pc += Integer.compareUnsigned(reg[rs1], reg[rs2]) >= 0 ? imm : 4; break;
+
+                case Op.JAL:
+                    reg[rd] = pc + 4;
+                    pc += imm;
+                    break;
+                case Op.JALR: {
+                    int target = (reg[rs1] + imm) & 0xFFFFFFFE; // Read rs1 before rd is written
+                    reg[rd] = pc + 4;
+                    pc = target;
+                    break;
+                }
+                case Op.LUI:   reg[rd] = imm; pc += 4; break;
+                case Op.AUIPC: reg[rd] = pc + imm; pc += 4; break;
+
+                case Op.ECALL:
+                    this.pc = pc;
+                    iTypeEcall();
+                    pc = this.pc;
+                    break;
+                case Op.UNDECODED:
+                    program.decode(i);
+                    continue;   // Dispatch again on the decoded instruction
+                default:
+                    this.pc = pc;
+                    executeInstruction();
+                    pc = this.pc;
+                    break;
+            }
+            reg[0] = 0; // x0 must always be 0
+            retired++;
+        }
+        this.pc = pc;
+        this.prevPc = prev;
+        return retired;
+    }
+
+    /**
+     * Called by memory after a store into the program's code.
+     * The overwritten instructions are decoded again when they are next executed, and their translated blocks are dropped.
+     */
+    private void codeWritten(int addr, int bytes) {
+        int offset = addr - program.base;    // Negative for a store straddling the first word
+        int first = Math.max(offset, 0) >> 2;
+        int last = Math.min((offset + bytes - 1) >> 2, program.length - 1);
+        for(int i = first; i <= last; i++){
+            program.invalidate(i);
+            blocks.invalidate(program.address(i));
+        }
+    }
+
     /**
      * Handles execution of r-Type instructions:
      * ADD / SUB / SLL / SLT / SLTU / XOR / SRL / SRA / OR / AND
@@ -132,7 +721,7 @@ public class CPU {
                 reg[inst.rd] = reg[inst.rs1] & reg[inst.rs2];
                 break;
         }
-        pc++;
+        pc += 4;
     }
 
     /**
@@ -161,7 +750,7 @@ public class CPU {
             default:
                 break;
         }
-        pc++;
+        pc += 4;
     }
 
     /**
@@ -209,7 +798,7 @@ public class CPU {
                 }
                 break;
         }
-        pc++;
+        pc += 4;
     }
 
     /**
@@ -218,29 +807,86 @@ public class CPU {
     private void iTypeEcall() {
         switch (reg[10]) {
             case 1:     // print_int
-                System.out.print(reg[11]);
+                out.print(Integer.toString(reg[11]));
                 break;
             case 4:     // print_string
-                System.out.print(memory.getString(reg[11]));
+                out.print(memory.getString(reg[11]));
                 break;
             case 9:     // sbrk
                 // not sure if we can do this?
                 break;
             case 10:    // exit
-                pc = program.length; // Sets program counter to end of program, to program loop
+                pc = program.end;    // Sets program counter to end of program, to program loop
                 return;              // Exits 'iTypeStatus' function and returns to loop.
             case 11:    // print_character
-                System.out.println((char) reg[11]);
+                out.print(String.valueOf((char) reg[11]));
                 break;
             case 17:    // exit2
-                pc = program.length;
+                pc = program.end;
                 //System.out.println("Return code: " + reg[11]); // Prints a1 (should be return?)
                 return;
             default:
-                System.out.println("ECALL " + reg[10] + " not implemented");
+                out.print("ECALL " + reg[10] + " not implemented\n");
+                break;
+        }
+        pc += 4;
+    }
+
+    /**
+     * Handles the CSR instructions. Only mhartid is implemented: other CSRs read as 0, and writes are ignored.
+     */
+    private void csr(Instruction inst) {
+        reg[inst.rd] = (inst.imm & 0xFFF) == MHARTID ? hartId : 0;
+        pc += 4;
+    }
+
+    /**
+     * Handles FENCE and FENCE.I.
+     * FENCE orders this hart's memory accesses before and after it, as seen by the other harts.
+     * FENCE.I makes this hart fetch code stored by any hart since: stores by this hart are seen right away,
+     * but the other harts' stores only reach this hart's decode cache when it is flushed here.
+     */
+    private void fence(Instruction inst) {
+        VarHandle.fullFence();
+        if(inst.funct3 == 0b001) program.invalidateAll();
+        pc += 4;
+    }
+
+    /**
+     * Handles the RV32A instructions:
+     * LR.W / SC.W / AMOSWAP.W / AMOADD.W / AMOXOR.W / AMOAND.W / AMOOR.W / AMOMIN.W / AMOMAX.W / AMOMINU.W / AMOMAXU.W
+     * Every atomic is sequentially consistent, which satisfies any combination of the aq and rl bits.
+     * The reservation of LR.W is kept by this hart's memory view, and SC.W fails after any other hart's store to it.
+     */
+    private void atomic(Instruction inst) {
+        int addr = reg[inst.rs1];
+        int value = reg[inst.rs2];  // Read rs1 and rs2 before rd is written
+        if(inst.funct3 != 0b010){   // Only word atomics exist in RV32A
+            out.print(String.format("Atomic instruction 0x%08x not implemented\n", inst.instruction));
+            pc += 4;
+            return;
+        }
+        switch(inst.funct7 >> 2){
+            case 0b00010: // LR.W
+                reg[inst.rd] = memory.loadReserved(addr);
+                break;
+            case 0b00011: // SC.W
+                reg[inst.rd] = memory.storeConditional(addr, value) ? 0 : 1;
+                break;
+            case 0b00001: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_SWAP); break;
+            case 0b00000: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_ADD); break;
+            case 0b00100: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_XOR); break;
+            case 0b01100: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_AND); break;
+            case 0b01000: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_OR); break;
+            case 0b10000: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_MIN); break;
+            case 0b10100: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_MAX); break;
+            case 0b11000: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_MINU); break;
+            case 0b11100: reg[inst.rd] = memory.getAndUpdateWord(addr, value, AMO_MAXU); break;
+            default:
+                out.print(String.format("Atomic instruction 0x%08x not implemented\n", inst.instruction));
                 break;
         }
-        pc++;
+        pc += 4;
     }
 
     /**
@@ -260,7 +906,7 @@ public class CPU {
                 memory.storeWord(addr, reg[inst.rs2]);
                 break;
         }
-        pc++;
+        pc += 4;
     }
 
     /**
@@ -268,25 +914,25 @@ public class CPU {
      * BEQ / BNE / BLT / BGE / BLTU / BGEU
      */
     private void bType(Instruction inst) {
-        int Imm = inst.imm >> 2; //We're counting in words instead of bytes
+        int Imm = inst.imm;
         switch(inst.funct3){
             case 0b000: // BEQ
-                pc += (reg[inst.rs1] == reg[inst.rs2]) ? Imm : 1;
+                pc += (reg[inst.rs1] == reg[inst.rs2]) ? Imm : 4;
                 break;
             case 0b001: // BNE
-                pc += (reg[inst.rs1] != reg[inst.rs2]) ? Imm : 1;
+                pc += (reg[inst.rs1] != reg[inst.rs2]) ? Imm : 4;
                 break;
             case 0b100: // BLT
-                pc += (reg[inst.rs1] < reg[inst.rs2]) ? Imm : 1;
+                pc += (reg[inst.rs1] < reg[inst.rs2]) ? Imm : 4;
                 break;
             case 0b101: // BGE
-                pc += (reg[inst.rs1] >= reg[inst.rs2]) ? Imm : 1;
+                pc += (reg[inst.rs1] >= reg[inst.rs2]) ? Imm : 4;
                 break;
             case 0b110: //BLTU
-                pc += (Integer.toUnsignedLong(reg[inst.rs1]) < Integer.toUnsignedLong(reg[inst.rs2])) ? Imm : 1;
+                pc += (Integer.toUnsignedLong(reg[inst.rs1]) < Integer.toUnsignedLong(reg[inst.rs2])) ? Imm : 4;
                 break;
             case 0b111: //BLGEU
-                pc += (Integer.toUnsignedLong(reg[inst.rs1]) >= Integer.toUnsignedLong(reg[inst.rs2])) ? Imm : 1;
+                pc += (Integer.toUnsignedLong(reg[inst.rs1]) >= Integer.toUnsignedLong(reg[inst.rs2])) ? Imm : 4;
                 break;
         }
     }
@@ -0,0 +1,177 @@
+/* File: Cache.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file models one set-associative cache of a hierarchy (see CacheHierarchy). Only the tags are kept,
+ * in primitive arrays indexed by set * ways + way, since the data itself is always read from Memory.
+ * A cache is either write-back with write-allocate, or write-through without write-allocate. Replacement is LRU,
+ * tree pseudo-LRU or random, and always fills an invalid way first.
+ * An access returns the cycles it waits for the levels below, so a hit costs nothing beyond the pipeline's own stage.
+ * Writes to the next level, i.e. write-throughs and write-backs of dirty lines, go through a write buffer and cost no cycles.
+ */
+
+package RISCVSimulator;
+
+import java.util.Arrays;
+
+final class Cache {
+    enum Replacement { LRU, PLRU, RANDOM }
+
+    final String name;
+    final int size;             // Bytes
+    final int ways;
+    final int lineSize;         // Bytes
+    final int sets;
+    final Replacement replacement;
+    final boolean writeBack;    // Write-back with write-allocate, else write-through without write-allocate
+    final int latency;          // Cycles to bring a line from this cache to the level above
+    final int offsetBits;       // Address bits of the byte within a line
+    private final Cache next;   // Next level, null if it is memory
+    private final int memoryLatency;
+    private final int setMask;
+
+    private final int[] tags;       // Line address (address >>> offsetBits) in every way, -1 if invalid
+    private final boolean[] dirty;
+    private final long[] used;      // LRU: clock of the last access to every way
+    private final int[] tree;       // PLRU: bit n of a set is node n of its tree (root 1), pointing towards the victim
+    private long clock;
+    private int seed = 0x2545F491;  // Random: xorshift state
+
+    long readHits, readMisses, writeHits, writeMisses, writebacks;
+
+    /**
+     * Constructor
+     * @param size: Bytes, ways * lineSize times a power of two
+     * @param ways: Associativity, a power of two of at most 32 for PLRU
+     * @param lineSize: Bytes, a power of two of at least 4
+     * @param latency: Cycles to bring a line from this cache to the level above
+     * @param next: Next level of the hierarchy, null if it is memory
+     * @param memoryLatency: Cycles to bring a line from memory, used if next is null
+     * @throws IllegalArgumentException If the geometry is not valid
+     */
+    Cache(String name, int size, int ways, int lineSize, Replacement replacement, boolean writeBack, int latency,
+          Cache next, int memoryLatency) {
+        if(Integer.bitCount(lineSize) != 1 || lineSize < 4 || ways < 1 || size % (ways * lineSize) != 0
+                || Integer.bitCount(size / (ways * lineSize)) != 1
+                || (replacement == Replacement.PLRU && (Integer.bitCount(ways) != 1 || ways > 32))){
+            throw new IllegalArgumentException("Invalid geometry of cache " + name);
+        }
+        this.name = name;
+        this.size = size;
+        this.ways = ways;
+        this.lineSize = lineSize;
+        this.sets = size / lineSize / ways;
+        this.replacement = replacement;
+        this.writeBack = writeBack;
+        this.latency = latency;
+        this.next = next;
+        this.memoryLatency = memoryLatency;
+        offsetBits = Integer.numberOfTrailingZeros(lineSize);
+        setMask = sets - 1;
+        tags = new int[sets * ways];
+        Arrays.fill(tags, -1);
+        dirty = new boolean[sets * ways];
+        used = replacement == Replacement.LRU ? new long[sets * ways] : null;
+        tree = replacement == Replacement.PLRU ? new int[sets] : null;
+    }
+
+    /**
+     * Reads or writes the line holding address.
+     * @return Cycles waited for the levels below, 0 on a hit
+     */
+    int access(int address, boolean write) {
+        int line = address >>> offsetBits;
+        int set = line & setMask;
+        int first = set * ways;
+        int free = -1;
+        for(int w = 0; w < ways; w++){
+            int tag = tags[first + w];
+            if(tag == line){
+                if(write){
+                    writeHits++;
+                    if(writeBack) dirty[first + w] = true;
+                    else if(next != null) next.access(address, true);
+                } else {
+                    readHits++;
+                }
+                touch(set, w);
+                return 0;
+            }
+            if(tag == -1 && free < 0) free = w;
+        }
+        return miss(line, set, free, address, write);
+    }
+
+    // Handles a miss of the line at address, filling way free of set if it is not -1. Kept apart from access() so its
+    // hit path is small enough to be inlined.
+    private int miss(int line, int set, int free, int address, boolean write) {
+        if(write){
+            writeMisses++;
+            if(!writeBack){     // No write-allocate
+                if(next != null) next.access(address, true);
+                return 0;
+            }
+        } else {
+            readMisses++;
+        }
+        int cycles = next == null ? memoryLatency : next.latency + next.access(address, false);
+        int w = free >= 0 ? free : victim(set);
+        int slot = set * ways + w;
+        if(dirty[slot]){
+            writebacks++;
+            if(next != null) next.access(tags[slot] << offsetBits, true);
+        }
+        tags[slot] = line;
+        dirty[slot] = write;
+        touch(set, w);
+        return cycles;
+    }
+
+    // Records an access to way w of set
+    private void touch(int set, int w) {
+        if(used != null){
+            used[set * ways + w] = ++clock;
+        } else if(tree != null){
+            int bits = tree[set];
+            int node = 1;
+            for(int level = Integer.numberOfTrailingZeros(ways) - 1; level >= 0; level--){
+                int right = (w >> level) & 1;
+                if(right == 0) bits |= 1 << node;   // Point away from the way just used
+                else bits &= ~(1 << node);
+                node = 2 * node + right;
+            }
+            tree[set] = bits;
+        }
+    }
+
+    // Returns the way of a full set to replace
+    private int victim(int set) {
+        switch(replacement){
+            case LRU: {
+                int first = set * ways, oldest = 0;
+                for(int w = 1; w < ways; w++){
+                    if(used[first + w] < used[first + oldest]) oldest = w;
+                }
+                return oldest;
+            }
+            case PLRU: {
+                int bits = tree[set];
+                int node = 1;
+                while(node < ways) node = 2 * node + ((bits >> node) & 1);
+                return node - ways;
+            }
+            default:
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                return Integer.remainderUnsigned(seed, ways);
+        }
+    }
+
+    long accesses() {
+        return readHits + readMisses + writeHits + writeMisses;
+    }
+
+    long misses() {
+        return readMisses + writeMisses;
+    }
+}
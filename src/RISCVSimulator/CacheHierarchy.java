@@ -0,0 +1,167 @@
+/* File: CacheHierarchy.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file simulates an L1 instruction cache, an L1 data cache and a unified L2 cache (see Cache) on the
+ * addresses the CPU fetches, loads and stores. It is a TraceListener, set with CPU.setTracer(), so the caches only
+ * follow the functional run and cost nothing when they are not simulated.
+ * Every retired instruction is fetched through the L1-I, and every load, store and atomic accesses the L1-D,
+ * twice if it straddles two lines. Atomics are counted as writes. A fetch from the line of the previous fetch is a hit
+ * without a lookup: nothing can evict that line in between, and it already is the most recently used of its set.
+ * The memory stall cycles are the cycles accesses wait for the levels below the L1 caches, on top of the pipeline's
+ * own IF and MEM stages, so they add to the cycles of the Pipeline model.
+ * Any cache can be left out: without an L2 the L1 caches miss to memory, and without an L1 there are no accesses
+ * of that kind.
+ */
+
+package RISCVSimulator;
+
+import java.io.PrintWriter;
+
+final class CacheHierarchy implements TraceListener {
+    // Default geometry: 16 KiB 4-way L1 caches and a 256 KiB 8-way L2, with 64-byte lines
+    static final String DEFAULT_L1 = "16K/4/64/lru/wb/1";
+    static final String DEFAULT_L2 = "256K/8/64/lru/wb/10";
+    static final int DEFAULT_MEMORY_LATENCY = 100;
+
+    final Cache l1i, l1d, l2;   // Null if left out
+    final int memoryLatency;
+    private final Program program;  // Tells atomics apart from the other instructions of Op.OTHER
+    private final int fetchBits;    // Offset bits of an L1-I line
+    private int fetchLine = -1;     // Line of the last fetch, -1 if none
+
+    private long instructions;
+    private long fetchStalls;
+    private long dataStalls;
+
+    /**
+     * Constructor
+     * The caches must have been created with l2 as their next level, or with null if l2 is null.
+     */
+    CacheHierarchy(Program program, Cache l1i, Cache l1d, Cache l2, int memoryLatency) {
+        this.program = program;
+        this.l1i = l1i;
+        this.l1d = l1d;
+        this.l2 = l2;
+        this.memoryLatency = memoryLatency;
+        fetchBits = l1i == null ? 0 : l1i.offsetBits;
+    }
+
+    /**
+     * Returns a hierarchy configured by a comma-separated list of settings, e.g. "l1d=32K/8/64/plru,l2=none".
+     * A cache is set by l1i=, l1d= or l2= followed by none or size/ways/line and optionally the replacement
+     * (lru, plru or random), the write policy (wb or wt) and the latency in cycles, in any order.
+     * memory=cycles sets the memory latency. "default" sets nothing: see DEFAULT_L1, DEFAULT_L2 and DEFAULT_MEMORY_LATENCY.
+     * @throws IllegalArgumentException If a setting is unknown or its value invalid
+     */
+    static CacheHierarchy parse(Program program, String settings) {
+        String l1i = DEFAULT_L1, l1d = DEFAULT_L1, l2 = DEFAULT_L2;
+        int memoryLatency = DEFAULT_MEMORY_LATENCY;
+        for(String setting : settings.split(",")){
+            if(setting.equals("default")) continue;
+            String[] kv = setting.split("=", 2);
+            String value = kv.length == 2 ? kv[1] : "";
+            switch(kv[0]){
+                case "l1i": l1i = value; break;
+                case "l1d": l1d = value; break;
+                case "l2":  l2 = value; break;
+                case "memory":
+                    if(!value.matches("[0-9]{1,6}")) throw new IllegalArgumentException("Invalid memory latency " + value);
+                    memoryLatency = Integer.parseInt(value);
+                    break;
+                default: throw new IllegalArgumentException("Unknown cache setting " + setting);
+            }
+        }
+        Cache shared = cache("L2", l2, null, memoryLatency);
+        return new CacheHierarchy(program, cache("L1-I", l1i, shared, memoryLatency),
+                cache("L1-D", l1d, shared, memoryLatency), shared, memoryLatency);
+    }
+
+    // Creates a cache from "none" or "size/ways/line[/replacement][/wb|wt][/latency]"
+    private static Cache cache(String name, String spec, Cache next, int memoryLatency) {
+        if(spec.equals("none")) return null;
+        String[] fields = spec.split("/");
+        if(fields.length < 3 || !fields[0].matches("[0-9]{1,7}[KkMm]?") || !fields[1].matches("[0-9]{1,2}")
+                || !fields[2].matches("[0-9]{1,5}")){
+            throw new IllegalArgumentException("Invalid cache " + name + "=" + spec);
+        }
+        int size = Integer.parseInt(fields[0].replaceAll("[KkMm]$", ""));
+        if(fields[0].matches(".*[Kk]")) size <<= 10;
+        if(fields[0].matches(".*[Mm]")) size <<= 20;
+        Cache.Replacement replacement = Cache.Replacement.LRU;
+        boolean writeBack = true;
+        int latency = 1;
+        for(int i = 3; i < fields.length; i++){
+            switch(fields[i]){
+                case "lru":    replacement = Cache.Replacement.LRU; break;
+                case "plru":   replacement = Cache.Replacement.PLRU; break;
+                case "random": replacement = Cache.Replacement.RANDOM; break;
+                case "wb":     writeBack = true; break;
+                case "wt":     writeBack = false; break;
+                default:
+                    if(!fields[i].matches("[0-9]{1,4}")) throw new IllegalArgumentException("Invalid cache " + name + "=" + spec);
+                    latency = Integer.parseInt(fields[i]);
+            }
+        }
+        return new Cache(name, size, Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), replacement, writeBack,
+                latency, next, memoryLatency);
+    }
+
+    @Override
+    public void retired(int pc, int op, int rd, int rs1, int rs2, int address, int nextPc) {
+        instructions++;
+        if(l1i != null){
+            int line = pc >>> fetchBits;
+            if(line != fetchLine){
+                fetchLine = line;
+                fetchStalls += l1i.access(pc, false);
+            } else {
+                l1i.readHits++;
+            }
+        }
+        if(l1d != null){
+            if(op >= Op.LB && op <= Op.SW) data(address, op);
+            else if(op == Op.OTHER && program.atomic(program.index(pc))) dataStalls += l1d.access(address, true);
+        }
+    }
+
+    // Accesses the L1-D for a load or store, kept apart so retired() is small enough to be inlined into the CPU's loop
+    private void data(int address, int op) {
+        boolean write = op >= Op.SB;
+        int bytes = op == Op.LW || op == Op.SW ? 4 : op == Op.LH || op == Op.LHU || op == Op.SH ? 2 : 1;
+        dataStalls += l1d.access(address, write);
+        int last = address + bytes - 1;
+        if(last >>> l1d.offsetBits != address >>> l1d.offsetBits) dataStalls += l1d.access(last, write);
+    }
+
+    /**
+     * Returns the cycles fetches, loads and stores waited for the levels below the L1 caches.
+     */
+    long stallCycles() {
+        return fetchStalls + dataStalls;
+    }
+
+    /**
+     * Writes the configuration and statistics of every cache and the memory stall cycles.
+     */
+    void writeReport(PrintWriter out) {
+        out.printf("Caches, memory latency %d cycles%n", memoryLatency);
+        out.printf("%-5s %9s %5s %5s %-11s %7s %14s %12s %9s %12s %12s %12s%n", "cache", "size", "ways", "line",
+                "policy", "latency", "accesses", "misses", "miss rate", "read misses", "write misses", "writebacks");
+        for(Cache cache : new Cache[]{l1i, l1d, l2}){
+            if(cache == null) continue;
+            out.printf("%-5s %9s %5d %5d %-11s %7d %14d %12d %8.3f%% %12d %12d %12d%n", cache.name, bytes(cache.size),
+                    cache.ways, cache.lineSize, cache.replacement + (cache.writeBack ? ", WB" : ", WT"), cache.latency,
+                    cache.accesses(), cache.misses(), cache.accesses() == 0 ? 0 : cache.misses() * 100.0 / cache.accesses(),
+                    cache.readMisses, cache.writeMisses, cache.writebacks);
+        }
+        out.printf("Memory stall cycles: %d fetch, %d data, %d total (%.3f per instruction)%n", fetchStalls, dataStalls,
+                stallCycles(), instructions == 0 ? 0 : (double) stallCycles() / instructions);
+    }
+
+    // Formats a cache size, e.g. "32K"
+    private static String bytes(int size) {
+        if(size % (1 << 20) == 0) return (size >> 20) + "M";
+        if(size % (1 << 10) == 0) return (size >> 10) + "K";
+        return Integer.toString(size);
+    }
+}
@@ -0,0 +1,217 @@
+/* File: ClassFileWriter.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file builds minimal JVM class files in memory: a constant pool, one interface,
+ * a default constructor and methods whose bytecode is assembled with labels.
+ * Class files are written as version 49 so the JVM does not require StackMapTable frames for branches.
+ */
+
+package RISCVSimulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+final class ClassFileWriter {
+    // Opcodes used by the JIT
+    static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+    static final int ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, IALOAD = 0x2E, IASTORE = 0x4F, POP = 0x57;
+    static final int IADD = 0x60, ISUB = 0x64, ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C, IAND = 0x7E, IOR = 0x80, IXOR = 0x82;
+    static final int I2S = 0x93;
+    static final int IFEQ = 0x99, IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C;
+    static final int IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2;
+    static final int GOTO = 0xA7, IRETURN = 0xAC, RETURN = 0xB1;
+    static final int GETFIELD = 0xB4, INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8;
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount = 0;
+    private final int thisClass, superClass, interfaceClass;
+
+    /**
+     * Constructor
+     * Names are internal names, e.g. "RISCVSimulator/CompiledBlock".
+     */
+    ClassFileWriter(String name, String superName, String interfaceName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaceClass = classRef(interfaceName);
+
+        // Default constructor calling super()
+        Code init = new Code();
+        init.var(ALOAD, 0);
+        init.op(INVOKESPECIAL).u2(methodRef(superName, "<init>", "()V"));
+        init.op(RETURN);
+        addMethod("<init>", "()V", init, 1, 1);
+    }
+
+    // Constant pool entries, shared when the same entry is requested twice
+    private int entry(String key, int tag, byte[] body) {
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            poolOut.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private static byte[] u2u2(int a, int b) {
+        return new byte[]{(byte) (a >> 8), (byte) a, (byte) (b >> 8), (byte) b};
+    }
+
+    int utf8(String s) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return entry("U" + s, 1, bytes.toByteArray());
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 3, new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return entry("C" + name, 7, new byte[]{(byte) (nameIndex >> 8), (byte) nameIndex});
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + ":" + descriptor, 12, u2u2(utf8(name), utf8(descriptor)));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + ":" + descriptor, 9, u2u2(classRef(owner), nameAndType(name, descriptor)));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + descriptor, 10, u2u2(classRef(owner), nameAndType(name, descriptor)));
+    }
+
+    /**
+     * Adds a public method with the given bytecode.
+     */
+    void addMethod(String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        byte[] bytecode = code.toByteArray();
+        try {
+            methodsOut.writeShort(ACC_PUBLIC);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(descriptor));
+            methodsOut.writeShort(1);                   // Attributes: Code
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(12 + bytecode.length);  // Attribute length
+            methodsOut.writeShort(maxStack);
+            methodsOut.writeShort(maxLocals);
+            methodsOut.writeInt(bytecode.length);
+            methodsOut.write(bytecode);
+            methodsOut.writeShort(0);                   // Exception table
+            methodsOut.writeShort(0);                   // Code attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    /**
+     * Returns the complete class file.
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);          // Minor version
+            out.writeShort(49);         // Major version, no stack map frames needed
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(interfaceClass);
+            out.writeShort(0);          // Fields
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0);          // Class attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Bytecode of one method, with forward and backward jumps to labels.
+     */
+    static final class Code {
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private final ArrayList<Integer> labels = new ArrayList<>();       // Position of each label, -1 if not placed
+        private final ArrayList<int[]> fixups = new ArrayList<>();         // {jump opcode position, label}
+
+        Code op(int opcode) {
+            return u1(opcode);
+        }
+
+        Code u1(int b) {
+            if(length == code.length) code = Arrays.copyOf(code, code.length * 2);
+            code[length++] = (byte) b;
+            return this;
+        }
+
+        Code u2(int s) {
+            return u1(s >> 8).u1(s);
+        }
+
+        // ILOAD / ISTORE / ALOAD of a local variable
+        Code var(int opcode, int index) {
+            return op(opcode).u1(index);
+        }
+
+        // Pushes an int constant using the shortest instruction
+        Code push(ClassFileWriter cf, int value) {
+            if(value >= -1 && value <= 5) return op(ICONST_0 + value);
+            if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) return op(BIPUSH).u1(value);
+            if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) return op(SIPUSH).u2(value);
+            return op(LDC_W).u2(cf.integer(value));
+        }
+
+        int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        void mark(int label) {
+            labels.set(label, length);
+        }
+
+        // Conditional jump or GOTO to a label
+        Code jump(int opcode, int label) {
+            fixups.add(new int[]{length, label});
+            return op(opcode).u2(0);
+        }
+
+        byte[] toByteArray() {
+            for(int[] fixup : fixups){
+                int offset = labels.get(fixup[1]) - fixup[0];
+                code[fixup[0] + 1] = (byte) (offset >> 8);
+                code[fixup[0] + 2] = (byte) offset;
+            }
+            return Arrays.copyOf(code, length);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/* File: CompiledBlock.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file defines the interface implemented by basic blocks compiled to JVM bytecode by JitCompiler.
+ */
+
+package RISCVSimulator;
+
+public interface CompiledBlock {
+    /**
+     * Executes the block and returns the address of the next instruction, like CPU.executeBlock().
+     * @param cpu: CPU executing the block, used for instructions only the single-step path implements
+     * @param reg: Registers of the CPU
+     * @param memory: Memory of the CPU
+     * @param block: The block that was compiled, checked for invalidation after every store
+     */
+    int execute(CPU cpu, int[] reg, Memory memory, Block block);
+}
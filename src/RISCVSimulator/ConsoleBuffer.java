@@ -0,0 +1,63 @@
+/* File: ConsoleBuffer.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file keeps ECALL output for the GUI console in a ring buffer of fixed capacity.
+ * Printing appends in O(length of the text) and drops the oldest characters when the buffer is full,
+ * so programs printing in long loops neither slow down nor fill the heap.
+ * The runner thread prints while the JavaFX thread reads, so all methods are synchronized.
+ */
+
+package RISCVSimulator;
+
+public class ConsoleBuffer implements OutputSink {
+    private final char[] buffer;
+    private int start = 0;          // Index of the oldest character
+    private int length = 0;         // Number of characters kept
+    private long version = 0;       // Changes whenever the content changes
+
+    ConsoleBuffer(int capacity) {
+        buffer = new char[capacity];
+    }
+
+    @Override
+    public synchronized void print(String text) {
+        int n = text.length();
+        if(n == 0) return;
+        if(n >= buffer.length){     // Only the end of the text fits
+            text.getChars(n - buffer.length, n, buffer, 0);
+            start = 0;
+            length = buffer.length;
+        } else {
+            int end = (start + length) % buffer.length;
+            int first = Math.min(n, buffer.length - end);   // Characters before wrapping around
+            text.getChars(0, first, buffer, end);
+            text.getChars(first, n, buffer, 0);
+            if(length + n > buffer.length){
+                start = (start + length + n - buffer.length) % buffer.length;
+                length = buffer.length;
+            } else {
+                length += n;
+            }
+        }
+        version++;
+    }
+
+    // Returns the kept output, oldest character first
+    public synchronized String text() {
+        int first = Math.min(length, buffer.length - start);
+        StringBuilder text = new StringBuilder(length);
+        text.append(buffer, start, first);
+        text.append(buffer, 0, length - first);
+        return text.toString();
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized void clear() {
+        start = 0;
+        length = 0;
+        version++;
+    }
+}
@@ -0,0 +1,141 @@
+/* File: ElfLoader.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file loads 32-bit little-endian RISC-V ELF executables.
+ * Every PT_LOAD segment is mapped into memory as a slice of the memory-mapped file, so nothing is copied until
+ * the program writes it, and the rest of a segment (.bss) reads as zero. The code region of the program spans the
+ * executable segments, and its instructions are decoded the first time they are executed (see Program).
+ * The symbol table is kept for naming addresses when profiling.
+ */
+
+package RISCVSimulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+final class ElfLoader {
+    private static final int MAGIC = 0x464C457F;    // "\177ELF" read as a little-endian word
+    private static final int ELFCLASS32 = 1, ELFDATA2LSB = 1, ET_EXEC = 2, EM_RISCV = 243;
+    private static final int PT_LOAD = 1, PF_X = 1;
+    private static final int SHT_SYMTAB = 2, SHN_UNDEF = 0;
+    private static final int STT_NOTYPE = 0, STT_OBJECT = 1, STT_FUNC = 2;
+    static final int MAX_CODE_SIZE = 16 << 20;      // Largest span of executable segments, bounds the decode cache
+
+    private ElfLoader() {}
+
+    /**
+     * Returns true if the file starts with the ELF magic number.
+     */
+    static boolean isElf(ByteBuffer file) {
+        return file.limit() >= 4 && file.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(0) == MAGIC;
+    }
+
+    /**
+     * Maps the loadable segments of an ELF executable into memory.
+     * The executable segments may be linked anywhere, but must lie within MAX_CODE_SIZE bytes of each other.
+     * @param file: The whole ELF file, e.g. memory-mapped
+     * @param mem: Memory the segments are mapped into
+     * @return The program, starting at the ELF entry point
+     * @throws IOException If the file is not a RISC-V RV32 executable or is truncated
+     */
+    static Program load(ByteBuffer file, Memory mem) throws IOException {
+        file = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if(file.limit() < 52 || !isElf(file)) throw new IOException("Not an ELF file");
+        if(file.get(4) != ELFCLASS32 || file.get(5) != ELFDATA2LSB){
+            throw new IOException("Only 32-bit little-endian ELF files are supported");
+        }
+        if(file.getShort(16) != ET_EXEC || file.getShort(18) != EM_RISCV){
+            throw new IOException("Not a RISC-V executable");
+        }
+        int entry = file.getInt(24);
+        int phoff = file.getInt(28);
+        int phentsize = file.getShort(42) & 0xFFFF;
+        int phnum = file.getShort(44) & 0xFFFF;
+
+        // Map the segments, the program's code spans from the first to the end of the last executable segment
+        long codeStart = Long.MAX_VALUE, codeEnd = 0;
+        for(int i = 0; i < phnum; i++){
+            int header = checkRange(file, phoff + (long) i * phentsize, 32);
+            if(file.getInt(header) != PT_LOAD) continue;
+            int offset = file.getInt(header + 4);
+            int vaddr = file.getInt(header + 8);
+            int filesz = file.getInt(header + 16);
+            int memsz = file.getInt(header + 20);
+            int flags = file.getInt(header + 24);
+            if(filesz > 0) mem.mapImage(vaddr, file.slice(checkRange(file, offset, filesz), filesz));
+            if((flags & PF_X) != 0 && memsz != 0){
+                codeStart = Math.min(codeStart, vaddr & 0xFFFFFFFFL);
+                codeEnd = Math.max(codeEnd, (vaddr & 0xFFFFFFFFL) + (memsz & 0xFFFFFFFFL));
+            }
+        }
+        if(codeEnd == 0) throw new IOException("No executable segment");
+        codeStart &= ~3L;
+        if(codeEnd - codeStart > MAX_CODE_SIZE){
+            throw new IOException(String.format("Executable segments span 0x%x bytes, at most 0x%x are supported", codeEnd - codeStart, MAX_CODE_SIZE));
+        }
+        int length = (int) ((codeEnd - codeStart + 3) >> 2);
+        long entryOffset = (entry & 0xFFFFFFFFL) - codeStart;
+        if((entry & 3) != 0 || entryOffset < 0 || entryOffset >= (long) length << 2){
+            throw new IOException(String.format("Entry point 0x%08x is not in an executable segment", entry));
+        }
+        return new Program(mem, (int) codeStart, length, entry, symbols(file));
+    }
+
+    // Reads the functions, objects and labels of the first symbol table, if the file has one
+    private static SymbolTable symbols(ByteBuffer file) throws IOException {
+        int shoff = file.getInt(32);
+        int shentsize = file.getShort(46) & 0xFFFF;
+        int shnum = file.getShort(48) & 0xFFFF;
+        for(int i = 0; i < shnum; i++){
+            int section = checkRange(file, shoff + (long) i * shentsize, 40);
+            if(file.getInt(section + 4) != SHT_SYMTAB) continue;
+            int offset = file.getInt(section + 16);
+            int size = file.getInt(section + 20);
+            checkRange(file, offset, size);
+            int strings = checkRange(file, shoff + (long) file.getInt(section + 24) * shentsize, 40);
+            int stringsOffset = file.getInt(strings + 16);
+            int stringsSize = file.getInt(strings + 20);
+            checkRange(file, stringsOffset, stringsSize);
+
+            ArrayList<String> names = new ArrayList<>();
+            int count = size / 16;
+            int[] address = new int[count];
+            int[] length = new int[count];
+            for(int s = 0; s < count; s++){
+                int symbol = offset + 16 * s;
+                int type = file.get(symbol + 12) & 0xF;
+                int shndx = file.getShort(symbol + 14) & 0xFFFF;
+                if(type != STT_NOTYPE && type != STT_OBJECT && type != STT_FUNC || shndx == SHN_UNDEF) continue;
+                String name = string(file, stringsOffset, stringsSize, file.getInt(symbol));
+                if(name.isEmpty() || name.startsWith("$")) continue;    // Unnamed and mapping symbols ($x, $d)
+                address[names.size()] = file.getInt(symbol + 4);
+                length[names.size()] = file.getInt(symbol + 8);
+                names.add(name);
+            }
+            int found = names.size();
+            return SymbolTable.of(Arrays.copyOf(address, found), Arrays.copyOf(length, found), names.toArray(new String[0]));
+        }
+        return SymbolTable.EMPTY;
+    }
+
+    // Reads a null-terminated name from a string table
+    private static String string(ByteBuffer file, int table, int tableSize, int index) {
+        if(index < 0 || index >= tableSize) return "";
+        int end = table + index;
+        while(end < table + tableSize && file.get(end) != 0) end++;
+        byte[] bytes = new byte[end - table - index];
+        file.get(table + index, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Returns offset if the bytes offset to offset+length-1 are in the file
+    private static int checkRange(ByteBuffer file, long offset, int length) throws IOException {
+        long unsignedOffset = offset & 0xFFFFFFFFL;
+        if(unsignedOffset + (length & 0xFFFFFFFFL) > file.limit()) throw new IOException("Truncated ELF file");
+        return (int) unsignedOffset;
+    }
+}
@@ -0,0 +1,212 @@
+/* File: Farm.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file runs many independent programs, each in its own CPU and Memory, on a small pool of threads.
+ * Instances are time-sliced by instruction count: a worker takes the next instance from a run queue, runs it for
+ * one slice (see CPU.run(long)) and puts it back at the end of the queue unless it has exited.
+ * A program that never exits therefore only takes its share of the workers, and thousands of instances can be
+ * added without a thread each. The printing ECALLs of every instance go to that instance's own sink.
+ * An instance is stopped once it has retired its instruction limit or run for its time limit, counting only the time
+ * it spent on a worker, so every run of the farm finishes.
+ *
+ * Usage: java RISCVSimulator.Farm [-threads n] [-slice instructions] [-limit instructions] [-timeout ms] [-copies n] program.bin|program.elf...
+ */
+
+package RISCVSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Farm {
+    static final long DEFAULT_SLICE = 1 << 20;     // Instructions an instance runs before the next one gets the worker
+
+    // A program running in its own CPU and Memory
+    static class Instance {
+        final String name;
+        final CPU cpu;
+        final OutputSink out;
+        long instructions;  // Retired so far
+        int slices;         // Number of slices run
+        long nanos;         // Time spent running, summed over the slices
+        RunResult result;   // How the program ended, null until it exits or exceeds a limit
+        Throwable failure;  // Exception that stopped the program, null if it has not failed
+
+        Instance(String name, CPU cpu, OutputSink out) {
+            this.name = name;
+            this.cpu = cpu;
+            this.out = out;
+        }
+
+        // Returns true once the program has exited, exceeded a limit or failed
+        boolean finished() {
+            return result != null || failure != null;
+        }
+    }
+
+    private static final Instance STOP = new Instance(null, null, null);   // Tells a worker that all instances finished
+
+    private final int threads;
+    private final long slice;
+    private final long maxInstructions;
+    private final long timeoutNanos;
+    private final List<Instance> instances = new ArrayList<>();
+    long instructions;  // Retired by all instances during the last run()
+    long nanos;         // Wall time of the last run()
+
+    /**
+     * Constructor
+     * @param threads: Number of worker threads
+     * @param slice: Instructions an instance runs at a time
+     * @param maxInstructions: Instruction limit of each instance, Long.MAX_VALUE for none
+     * @param timeoutMillis: Running time limit of each instance, 0 for none
+     */
+    Farm(int threads, long slice, long maxInstructions, long timeoutMillis) {
+        this.threads = threads;
+        this.slice = slice;
+        this.maxInstructions = maxInstructions;
+        this.timeoutNanos = timeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Adds a program to run. The memory and program must not be shared with another instance.
+     * @param name: Name of the instance in reports
+     * @param out: Sink of the instance's printing ECALLs. Only one worker runs an instance at a time.
+     */
+    Instance add(String name, Memory memory, Program program, OutputSink out) {
+        CPU cpu = new CPU(memory, program);
+        cpu.setOutput(out);
+        Instance instance = new Instance(name, cpu, out);
+        instances.add(instance);
+        return instance;
+    }
+
+    List<Instance> instances() {
+        return instances;
+    }
+
+    /**
+     * Runs every instance until its program exits, exceeds a limit or throws, and waits for all of them.
+     * @return Number of instructions retired by all instances
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    long run() throws InterruptedException {
+        LinkedBlockingQueue<Instance> queue = new LinkedBlockingQueue<>();
+        for(Instance instance : instances){
+            if(!instance.finished()) queue.add(instance);
+        }
+        AtomicInteger remaining = new AtomicInteger(queue.size());
+        long before = 0;
+        for(Instance instance : instances) before += instance.instructions;
+
+        long start = System.nanoTime();
+        if(!queue.isEmpty()){
+            Thread[] workers = new Thread[threads];
+            for(int i = 0; i < threads; i++){
+                workers[i] = new Thread(() -> work(queue, remaining), "RISC-V farm worker " + i);
+                workers[i].start();
+            }
+            for(Thread worker : workers) worker.join();
+        }
+        nanos = System.nanoTime() - start;
+
+        instructions = -before;
+        for(Instance instance : instances) instructions += instance.instructions;
+        return instructions;
+    }
+
+    // Runs slices of queued instances until the last one finishes
+    private void work(LinkedBlockingQueue<Instance> queue, AtomicInteger remaining) {
+        try {
+            while(true){
+                Instance instance = queue.take();
+                if(instance == STOP){
+                    queue.add(STOP);    // Pass it on to the next worker
+                    return;
+                }
+                long start = System.nanoTime();
+                CPU cpu = instance.cpu;
+                try {
+                    instance.instructions += cpu.run(Math.min(slice, maxInstructions - instance.instructions));
+                } catch (Throwable e) {     // A failing program must not take its worker down
+                    instance.failure = e;
+                }
+                instance.nanos += System.nanoTime() - start;
+                instance.slices++;
+                if(instance.failure == null && (!cpu.running() || instance.instructions >= maxInstructions
+                        || instance.nanos >= timeoutNanos)){
+                    instance.result = cpu.result(instance.instructions, maxInstructions,
+                            instance.nanos >= timeoutNanos);
+                }
+                if(!instance.finished()) queue.add(instance);
+                else if(remaining.decrementAndGet() == 0) queue.add(STOP);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long slice = DEFAULT_SLICE, limit = Long.MAX_VALUE, timeout = 0;
+        int copies = 1;
+        int first = 0;
+        while(first + 1 < args.length && args[first].matches("-threads|-slice|-limit|-timeout|-copies")){
+            String value = args[first + 1];
+            // The limits are longs like those of HeadlessRunner, the counts and the slice ints
+            String format = args[first].equals("-limit") ? "[1-9][0-9]{0,17}"
+                    : args[first].equals("-timeout") ? "[0-9]{1,18}" : "[1-9][0-9]{0,8}";
+            if(!value.matches(format)){
+                first = args.length;    // Reported as a usage error
+                break;
+            }
+            switch(args[first]){
+                case "-threads": threads = Integer.parseInt(value); break;
+                case "-slice":   slice = Integer.parseInt(value); break;
+                case "-limit":   limit = Long.parseLong(value); break;
+                case "-timeout": timeout = Long.parseLong(value); break;
+                default:         copies = Integer.parseInt(value); break;
+            }
+            first += 2;
+        }
+        if(first >= args.length){
+            System.err.println("Usage: java RISCVSimulator.Farm [-threads n] [-slice instructions] [-limit instructions] [-timeout ms] [-copies n] program.bin|program.elf...");
+            System.exit(2);
+        }
+
+        Farm farm = new Farm(threads, slice, limit, timeout);
+        List<StringBuilder> outputs = new ArrayList<>();
+        for(int i = first; i < args.length; i++){
+            File file = new File(args[i]);
+            for(int c = 0; c < copies; c++){
+                Memory mem = new Memory(Memory.DEFAULT_SIZE);
+                StringBuilder output = new StringBuilder();
+                outputs.add(output);
+                farm.add(copies == 1 ? file.getName() : file.getName() + "#" + c, mem, BinaryFiles.loadProgram(file, mem), output::append);
+            }
+        }
+        farm.run();
+
+        int failed = 0, stopped = 0;
+        for(int i = 0; i < farm.instances.size(); i++){
+            Instance instance = farm.instances.get(i);
+            String note = "";
+            if(instance.failure != null){
+                note = "  failed: " + instance.failure;
+                failed++;
+            } else if(instance.result.limitExceeded()){
+                note = "  " + instance.result;
+                stopped++;
+            }
+            System.out.printf("%-30s %12d instr %6d slices %10.3f ms %8d bytes output%s%n", instance.name,
+                    instance.instructions, instance.slices, instance.nanos / 1e6, outputs.get(i).length(), note);
+        }
+        System.out.printf("%d instances, %d failed, %d exceeded a limit. %d instructions in %.3f ms wall time on %d threads (%.2f MIPS)%n",
+                farm.instances.size(), failed, stopped, farm.instructions, farm.nanos / 1e6, threads,
+                HeadlessRunner.mips(farm.instructions, farm.nanos));
+    }
+}
@@ -0,0 +1,152 @@
+/* File: HeadlessRunner.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file runs a RISC-V binary or ELF executable from the command line without starting the GUI.
+ * The program is executed to completion and the registers are written in the same format as the GUI's save option.
+ * Additional memory images can be mapped before the program starts with -image file@address (address in hex).
+ * With -harts n the program is run by n harts sharing the memory, each on its own thread (see Machine),
+ * and the registers of every hart are printed. A register file is written with the registers of hart 0.
+ * -limit n stops each hart after n instructions and -timeout ms after ms milliseconds, so a program that never
+ * exits cannot stall a batch run. The registers are still written, and the exit status is 3.
+ * -profile file profiles hart 0 (see Profiler), writing the report to file and the collapsed stacks to file.folded.
+ * -pipeline settings times hart 0 on a 5-stage pipeline model (see Pipeline), e.g. -pipeline default or
+ * -pipeline forwarding=off,branch=3, and writes the cycles, CPI and the most expensive blocks to stderr.
+ * -cache settings simulates L1 and L2 caches on the fetches, loads and stores of hart 0 (see CacheHierarchy),
+ * e.g. -cache default or -cache l1d=32K/8/64/plru,l2=none, and writes the miss rates and memory stall cycles to stderr.
+ * -predictor settings runs a branch predictor on the branches and jumps of hart 0 (see BranchPredictor),
+ * e.g. -predictor gshare or -predictor tournament,bits=14,ras=8, and writes its misprediction rates to stderr.
+ * -trace file records every instruction of hart 0 with its register write and memory access to file (see TraceRecorder),
+ * which is read with TraceReader.
+ *
+ * Usage: java RISCVSimulator.HeadlessRunner [-harts n] [-limit n] [-timeout ms] [-profile file] [-pipeline settings] [-cache settings] [-predictor settings] [-trace file] [-image file@address]... program.bin|program.elf [registers.res]
+ */
+
+package RISCVSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+public class HeadlessRunner {
+    private static final int PROFILE_TOP = 20;  // Blocks and instructions listed in a profile report
+    private static final int TRACE_TOP = 10;    // Blocks or branches listed in a pipeline or branch predictor report
+    private static final String USAGE = "Usage: java RISCVSimulator.HeadlessRunner [-harts n] [-limit n] [-timeout ms] [-profile file] [-pipeline settings] [-cache settings] [-predictor settings] [-trace file] [-image file@address]... program.bin|program.elf [registers.res]";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ArrayList<String> images = new ArrayList<>();
+        String harts = "1", limit = String.valueOf(Long.MAX_VALUE), timeout = "0", profile = null, pipeline = null, cache = null, predictor = null, trace = null;
+        int first = 0;
+        while(first + 1 < args.length && args[first].matches("-image|-harts|-limit|-timeout|-profile|-pipeline|-cache|-predictor|-trace")){
+            switch(args[first]){
+                case "-image":   images.add(args[first + 1]); break;
+                case "-harts":   harts = args[first + 1]; break;
+                case "-limit":   limit = args[first + 1]; break;
+                case "-timeout": timeout = args[first + 1]; break;
+                case "-pipeline": pipeline = args[first + 1]; break;
+                case "-cache":   cache = args[first + 1]; break;
+                case "-predictor": predictor = args[first + 1]; break;
+                case "-trace":   trace = args[first + 1]; break;
+                default:         profile = args[first + 1]; break;
+            }
+            first += 2;
+        }
+        if(args.length - first < 1 || args.length - first > 2 || !images.stream().allMatch(i -> i.matches(".+@(0x)?[0-9a-fA-F]+"))
+                || !harts.matches("[1-9][0-9]{0,3}") || !limit.matches("[1-9][0-9]{0,18}") || !timeout.matches("[0-9]{1,18}")){
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        File binFile = new File(args[first]);
+
+        // Initialize processor and map the additional images
+        Memory mem = new Memory(Memory.DEFAULT_SIZE);
+        Program program = BinaryFiles.loadProgram(binFile, mem);
+        for(String image : images){
+            int at = image.lastIndexOf('@');
+            String address = image.substring(at + 1).replaceFirst("^0x", "");
+            BinaryFiles.loadImage(new File(image.substring(0, at)), mem, Integer.parseUnsignedInt(address, 16));
+        }
+        Machine machine = new Machine(mem, program, Integer.parseInt(harts));
+        Profiler profiler = profile == null ? null : new Profiler(program);
+        machine.harts[0].setProfiler(profiler);
+        Pipeline timing = null;
+        CacheHierarchy caches = null;
+        BranchPredictor branches = null;
+        try {
+            if(pipeline != null) timing = Pipeline.parse(program, pipeline);
+            if(cache != null) caches = CacheHierarchy.parse(program, cache);
+            if(predictor != null) branches = BranchPredictor.parse(program, predictor);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        ArrayList<TraceListener> tracers = new ArrayList<>();
+        if(timing != null) tracers.add(timing);
+        if(caches != null) tracers.add(caches);
+        if(branches != null) tracers.add(branches);
+        TraceRecorder recorder = trace == null ? null : new TraceRecorder(machine.harts[0], program, new File(trace));
+        if(recorder != null) tracers.add(recorder);
+        if(!tracers.isEmpty()) machine.harts[0].setTracer(TraceListener.of(tracers.toArray(new TraceListener[0])));
+        StreamSink out = new StreamSink(System.out);
+        machine.setOutput(out);
+
+        // Run to completion or until a limit is exceeded. ECALL output goes to stdout, so statistics are written to stderr.
+        long start = System.nanoTime();
+        RunResult[] results = machine.run(Long.parseLong(limit), Long.parseLong(timeout));
+        long elapsed = System.nanoTime() - start;
+        out.flush();
+        long retired = 0;
+        boolean exceeded = false;
+        for(RunResult result : results){
+            retired += result.retired;
+            exceeded |= result.limitExceeded();
+        }
+        System.err.printf("%s: %d instructions in %.3f ms (%.2f MIPS), %d KiB memory resident%n",
+                binFile.getName(), retired, elapsed / 1e6, mips(retired, elapsed), mem.residentBytes() / 1024);
+        for(int i = 0; i < results.length; i++){
+            if(results[i].limitExceeded()){
+                System.err.printf("%s: %s%s%n", binFile.getName(), results.length > 1 ? "hart " + i + ": " : "", results[i]);
+            }
+        }
+        if(profiler != null){
+            try(PrintWriter report = new PrintWriter(profile); PrintWriter folded = new PrintWriter(profile + ".folded")){
+                profiler.writeReport(report, PROFILE_TOP);
+                profiler.writeCollapsed(folded);
+            }
+        }
+        if(recorder != null){
+            recorder.close();
+            System.err.printf("%s: %d instructions traced to %s (%d bytes)%n", binFile.getName(), recorder.recorded(), trace,
+                    new File(trace).length());
+        }
+        if(!tracers.isEmpty()){
+            PrintWriter report = new PrintWriter(System.err);
+            if(timing != null) timing.writeReport(report, TRACE_TOP);
+            if(caches != null) caches.writeReport(report);
+            if(branches != null) branches.writeReport(report, TRACE_TOP);
+            if(timing != null && caches != null && timing.instructions() > 0){
+                long cycles = timing.cycles() + caches.stallCycles();
+                report.printf("Pipeline with memory stalls: %d cycles, CPI %.3f%n", cycles, (double) cycles / timing.instructions());
+            }
+            report.flush();
+        }
+
+        if(args.length - first == 2){
+            BinaryFiles.writeRegisters(new File(args[first + 1]), machine.harts[0].reg);
+        } else {
+            for(CPU cpu : machine.harts){
+                if(machine.harts.length > 1) System.out.printf("hart %d:%n", cpu.hartId);
+                for(int i = 0; i < 32; i++){
+                    System.out.printf("x%-2d = 0x%08X (%d)%n", i, cpu.reg[i], cpu.reg[i]);
+                }
+            }
+        }
+        if(exceeded) System.exit(3);
+    }
+
+    // Million instructions per second, given the elapsed time in nanoseconds
+    static double mips(long instructions, long nanos) {
+        return nanos == 0 ? 0 : instructions * 1e3 / nanos;
+    }
+}
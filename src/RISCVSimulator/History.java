@@ -0,0 +1,116 @@
+/* File: History.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file keeps an undo journal of executed instructions, used by the GUI to step back.
+ * Each step records the pc, the old value of its destination register, the LR.W reservation and the old value of the
+ * bytes it stores to, so recording and rewinding a step costs O(bytes changed) instead of copying registers and memory.
+ * Entries are kept in parallel primitive arrays, about 29 bytes per step plus 9 bytes per store.
+ */
+
+package RISCVSimulator;
+
+import java.util.Arrays;
+
+final class History {
+    private int steps = 0;                      // Number of recorded steps
+    private int[] pc = new int[1024];           // pc before the step
+    private int[] prevPc = new int[1024];       // prevPc before the step
+    private byte[] rd = new byte[1024];         // Destination register of the step
+    private int[] oldRd = new int[1024];        // Value of the destination register before the step
+    private int[] firstStore = new int[1024];   // Index of the first store journal entry of the step
+    private boolean[] reserved = new boolean[1024]; // Memory held an LR.W reservation before the step
+    private int[] reservedAddr = new int[1024];     // Its address
+    private int[] reservedValue = new int[1024];    // The word it loaded
+
+    private int stores = 0;                     // Number of recorded stores
+    private int[] storeAddr = new int[256];     // Address stored to
+    private int[] storeOld = new int[256];      // Value at the address before the store
+    private byte[] storeWidth = new byte[256];  // Bytes stored: 1, 2 or 4
+
+    /**
+     * Records the state that the instruction at cpu.pc is about to change. Must be called before executing it.
+     */
+    void record(CPU cpu, Program program, Memory mem) {
+        if(steps == pc.length) growSteps();
+        Instruction inst = program.instructionAt(cpu.pc);
+        pc[steps] = cpu.pc;
+        prevPc[steps] = cpu.prevPc;
+        rd[steps] = (byte) inst.rd;
+        oldRd[steps] = cpu.reg[inst.rd];
+        firstStore[steps] = stores;
+        reserved[steps] = mem.reserved();
+        reservedAddr[steps] = mem.reservedAddr();
+        reservedValue[steps] = mem.reservedValue();
+        if(inst.sType || inst.amo){
+            int addr = cpu.reg[inst.rs1] + inst.imm;
+            int width = 1 << inst.funct3;   // SB / SH / SW, and the word of an atomic
+            recordStore(addr, width, width == 1 ? mem.getByte(addr) : width == 2 ? mem.getHalfWord(addr) : mem.getWord(addr));
+        }
+        steps++;
+    }
+
+    /**
+     * Reverts the most recently recorded step: memory, the LR.W reservation, the destination register, pc and prevPc.
+     * Stores are undone through Memory, so undoing a store into the program re-decodes it.
+     */
+    void rewind(CPU cpu, Memory mem) {
+        steps--;
+        for(int s = stores - 1; s >= firstStore[steps]; s--){
+            switch(storeWidth[s]){
+                case 1:
+                    mem.storeByte(storeAddr[s], storeOld[s]);
+                    break;
+                case 2:
+                    mem.storeHalfWord(storeAddr[s], (short) storeOld[s]);
+                    break;
+                default:
+                    mem.storeWord(storeAddr[s], storeOld[s]);
+                    break;
+            }
+        }
+        stores = firstStore[steps];
+        mem.restoreReservation(reserved[steps], reservedAddr[steps], reservedValue[steps]);
+        cpu.reg[rd[steps]] = oldRd[steps];
+        cpu.reg[0] = 0;
+        cpu.pc = pc[steps];
+        cpu.prevPc = prevPc[steps];
+    }
+
+    boolean isEmpty() {
+        return steps == 0;
+    }
+
+    // Number of steps that can be rewound
+    int size() {
+        return steps;
+    }
+
+    void clear() {
+        steps = 0;
+        stores = 0;
+    }
+
+    private void recordStore(int addr, int width, int old) {
+        if(stores == storeAddr.length){
+            storeAddr = Arrays.copyOf(storeAddr, stores * 2);
+            storeOld = Arrays.copyOf(storeOld, stores * 2);
+            storeWidth = Arrays.copyOf(storeWidth, stores * 2);
+        }
+        storeAddr[stores] = addr;
+        storeOld[stores] = old;
+        storeWidth[stores] = (byte) width;
+        stores++;
+    }
+
+    private void growSteps() {
+        int length = steps * 2;
+        pc = Arrays.copyOf(pc, length);
+        prevPc = Arrays.copyOf(prevPc, length);
+        rd = Arrays.copyOf(rd, length);
+        oldRd = Arrays.copyOf(oldRd, length);
+        firstStore = Arrays.copyOf(firstStore, length);
+        reserved = Arrays.copyOf(reserved, length);
+        reservedAddr = Arrays.copyOf(reservedAddr, length);
+        reservedValue = Arrays.copyOf(reservedValue, length);
+    }
+}
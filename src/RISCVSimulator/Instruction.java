@@ -1,7 +1,7 @@
 /* File: Instruction.java
  * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
  *
- * The following file contains one RV32I instruction and all the possible fields.
+ * The following file contains one RV32I or RV32A instruction and all the possible fields.
  * Also has a string the resembles the instruction as assembly language code. 
  */
 
@@ -12,11 +12,13 @@ public class Instruction {
     boolean noRd = false;
     boolean sType = false;
     boolean ecall = false;
-    String assemblyString;
+    boolean amo = false;    // LR.W / SC.W / AMO*.W, which read and write the word at rs1
+    private String assemblyString;
 
     /**
      * Constructor
      * Sets the instruction and decodes it.
+     * The assembly string is only built when getAssemblyString() is called.
      */
     public Instruction(int instruction) {
         // Used in nearly all 
@@ -26,45 +28,72 @@ public class Instruction {
         this.funct3 = (instruction >> 12) & 0x7;    // bits 14 to 12
         this.rs1 = (instruction >> 15) & 0x1F;      // bits 19 to 15
         this.rs2 = (instruction >> 20) & 0x1F;      // bits 24 to 20
+        this.imm = decodeImmediate(instruction);
 
-        // Immediate is different for all types
         switch(opcode) {
-            case 0b1101111: // J-type
-                this.imm =  getImmJ(instruction);
-                break; 
-            case 0b1100111: // I-type
+            case 0b1100111: // I-type uses funct7 in shift instructions
             case 0b0000011: 
             case 0b0010011: 
-                this.imm = (instruction >> 20); // bits 31 to 20
-                // No break since I-type also uses funct7 in shift instructions  
             case 0b0110011: // R-type
                 this.funct7 = (instruction >> 25) & 0x7F;   // bits 31 to 25
                 break; 
+            case 0b0101111: // RV32A, funct5 and the aq and rl bits are in funct7
+                this.funct7 = (instruction >> 25) & 0x7F;
+                amo = true;
+                break;
+            case 0b1110011: // ECALL / EBREAK / CSR*
+                noRd = funct3 == 0;
+                ecall = funct3 == 0 && imm == 0;
+                break;
             case 0b0100011: // S-type
-                imm = (((instruction >> 20) & 0xFFFFFFE0) |
-                ((instruction >>> 7) & 0x0000001F));    // Returns bits 31 to 25 and 11 to 7
-                break; 
+                noRd = true;
+                sType = true;
+                break;
             case 0b1100011: // B-type
-                this.imm = getImmB(instruction);
-                break; 
-            case 0b0110111:// U-type
+                noRd = true;
+                break;
+        }
+    }
+
+    /**
+     * Returns the immediate of an instruction word.
+     * Immediate is different for all types. R-type and ECALL doesn't have an immediate.
+     */
+    static int decodeImmediate(int instruction) {
+        switch(instruction & 0x7F) {
+            case 0b1101111: // J-type
+                return getImmJ(instruction);
+            case 0b1100111: // I-type
+            case 0b0000011: 
+            case 0b0010011: 
+            case 0b1110011: 
+                return instruction >> 20; // bits 31 to 20
+            case 0b0100011: // S-type
+                return ((instruction >> 20) & 0xFFFFFFE0) |
+                        ((instruction >>> 7) & 0x0000001F);    // Returns bits 31 to 25 and 11 to 7
+            case 0b1100011: // B-type
+                return getImmB(instruction);
+            case 0b0110111: // U-type
             case 0b0010111:
-                this.imm = instruction & 0xFFFFF000;
-                break; 
+                return instruction & 0xFFFFF000;
             default: 
-                // R-type and ECALL doesn't have an immediate
-                break; 
+                return 0;
         }
-
-        this.assemblyString = toAssemblyString();   // The instruction show in assembly code
     }
 
+    /**
+     * Returns the instruction in assembly code. Built on first call.
+     */
+    String getAssemblyString() {
+        if(assemblyString == null) assemblyString = toAssemblyString();
+        return assemblyString;
+    }
 
     /**
      * Returns the B-type immediate
      * Decoded like this: imm[12|10:5|4:1|11]
      */
-    private int getImmB (int instruction) {
+    private static int getImmB (int instruction) {
         return ((((((instruction >>> 7) & 0x0000001F)|(instruction >> 20) & 0xFFFFFFE0)) & 0xFFFFF7FE)
                 | (((((instruction >> 20) & 0xFFFFFFE0) | ((instruction >>> 7) & 0x0000001F)) & 0x00000001) << 11));
     }
@@ -73,7 +102,7 @@ public class Instruction {
      * Returns the J-type immediate
      * Decoded like this: imm[20|10:1|11|19:12]
      */
-    private int getImmJ(int instruction) {
+    private static int getImmJ(int instruction) {
         int b12to19 = (instruction>>12) & 0xFF; // Bits 12 to 19 of immediate (12 to 19 of instruction)
         int b11 = (instruction>>20) & 0x1;      // Bit 11 of immediate (20th bit of instruction)
         int b1to10 = (instruction>>21) & 0x3FF; // Bit 1 to 10 of immediate (21 to 30 of instruction)
@@ -217,7 +246,6 @@ public class Instruction {
                         switch(imm){
                             case 0b000000000000: // ECALL
                                 instr = "ecall";
-                                ecall = true;
                                 break;
                             case 0b000000000001: // EBREAK
                                 instr = "ebreak";
@@ -243,7 +271,50 @@ public class Instruction {
                         instr = "csrrci";
                         break;
                 }
-                noRd = true;
+                break;
+
+            // RV32A instructions
+            case 0b0101111: // LR.W / SC.W / AMOSWAP.W / AMOADD.W / AMOXOR.W / AMOAND.W / AMOOR.W / AMOMIN[U].W / AMOMAX[U].W
+                arg1 = String.format("x%d", rd);
+                arg2 = String.format("x%d", rs2);
+                arg3 = String.format("(x%d)", rs1);
+                switch(funct7 >> 2){
+                    case 0b00010: // LR.W
+                        instr = "lr.w";
+                        arg2 = arg3;
+                        arg3 = "";
+                        break;
+                    case 0b00011: // SC.W
+                        instr = "sc.w";
+                        break;
+                    case 0b00001: // AMOSWAP.W
+                        instr = "amoswap.w";
+                        break;
+                    case 0b00000: // AMOADD.W
+                        instr = "amoadd.w";
+                        break;
+                    case 0b00100: // AMOXOR.W
+                        instr = "amoxor.w";
+                        break;
+                    case 0b01100: // AMOAND.W
+                        instr = "amoand.w";
+                        break;
+                    case 0b01000: // AMOOR.W
+                        instr = "amoor.w";
+                        break;
+                    case 0b10000: // AMOMIN.W
+                        instr = "amomin.w";
+                        break;
+                    case 0b10100: // AMOMAX.W
+                        instr = "amomax.w";
+                        break;
+                    case 0b11000: // AMOMINU.W
+                        instr = "amominu.w";
+                        break;
+                    case 0b11100: // AMOMAXU.W
+                        instr = "amomaxu.w";
+                        break;
+                }
                 break;
 
             //S-type instructions
@@ -261,8 +332,6 @@ public class Instruction {
                         instr = "sw";
                         break;
                 }
-                noRd = true;
-                sType = true;
                 break;
 
             //B-type instructions
@@ -290,7 +359,6 @@ public class Instruction {
                         instr = "blgeu";
                         break;
                 }
-                noRd = true;
                 break;
 
             //U-type instructions
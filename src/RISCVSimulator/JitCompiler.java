@@ -0,0 +1,284 @@
+/* File: JitCompiler.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file compiles hot basic blocks to JVM bytecode.
+ * Each block becomes a hidden class implementing CompiledBlock. The RISC-V registers used by the block are
+ * loaded into JVM locals when the block starts and written back when it exits, so the JVM JIT can keep them
+ * in host registers. Instructions the bytecode does not implement are executed through CPU.step().
+ */
+
+package RISCVSimulator;
+
+import java.lang.invoke.MethodHandles;
+
+import static RISCVSimulator.ClassFileWriter.*;
+
+final class JitCompiler {
+    static final int DEFAULT_THRESHOLD = 1000;  // Interpreted executions before a block is compiled
+
+    // Local variable slots of the generated execute method
+    private static final int CPU_LOCAL = 1, REG_LOCAL = 2, MEMORY_LOCAL = 3, BLOCK_LOCAL = 4;
+    private static final int REG_BASE = 5;      // x1 to x31 are kept in locals REG_BASE+1 to REG_BASE+31
+    private static final int NEXT_PC = REG_BASE + 32;
+
+    private static final String CPU = "RISCVSimulator/CPU";
+    private static final String MEMORY = "RISCVSimulator/Memory";
+    private static final String BLOCK = "RISCVSimulator/Block";
+    private static final String EXECUTE = "(LRISCVSimulator/CPU;[ILRISCVSimulator/Memory;LRISCVSimulator/Block;)I";
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private JitCompiler() {}
+
+    /**
+     * Compiles a block. If compiling fails the block is marked as not compilable and null is returned,
+     * so it keeps running in the interpreter.
+     */
+    static CompiledBlock compile(Block block) {
+        try {
+            byte[] classFile = generate(block);
+            Class<?> c = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+            return (CompiledBlock) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            block.compilable = false;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the class file of a block.
+     */
+    static byte[] generate(Block block) {
+        ClassFileWriter cf = new ClassFileWriter("RISCVSimulator/CompiledBlock" + Integer.toHexString(block.start),
+                "java/lang/Object", "RISCVSimulator/CompiledBlock");
+        Code code = new Code();
+        int last = block.length - 1;
+        int exit = code.newLabel();
+
+        // Load every register the block reads or writes. Written registers are loaded too,
+        // so an early exit can write back all of them no matter which were assigned.
+        boolean[] used = usedRegisters(block);
+        for(int r = 1; r < 32; r++){
+            if(!used[r]) continue;
+            code.var(ALOAD, REG_LOCAL).push(cf, r).op(IALOAD).var(ISTORE, REG_BASE + r);
+        }
+
+        for(int i = 0; i < last; i++){
+            emitInstruction(cf, code, block, i, exit);
+        }
+
+        // Terminating instruction, leaves the next pc in NEXT_PC
+        int pc = block.start + (last << 2);
+        int op = block.op[last], rd = block.rd[last], rs1 = block.rs1[last], rs2 = block.rs2[last];
+        switch(op){
+            case Op.BEQ: case Op.BNE: case Op.BLT: case Op.BGE: case Op.BLTU: case Op.BGEU: {
+                int taken = code.newLabel();
+                load(code, rs1);
+                load(code, rs2);
+                switch(op){
+                    case Op.BEQ:  code.jump(IF_ICMPEQ, taken); break;
+                    case Op.BNE:  code.jump(IF_ICMPNE, taken); break;
+                    case Op.BLT:  code.jump(IF_ICMPLT, taken); break;
+                    case Op.BGE:  code.jump(IF_ICMPGE, taken); break;
+                    case Op.BLTU: compareUnsigned(cf, code); code.jump(IFLT, taken); break;
+                    case Op.BGEU: compareUnsigned(cf, code); code.jump(IFGE, taken); break;
+                }
+                code.push(cf, block.fallPc).var(ISTORE, NEXT_PC).jump(GOTO, exit);
+                code.mark(taken);
+                code.push(cf, block.takenPc).var(ISTORE, NEXT_PC);
+                break;
+            }
+            case Op.JAL:
+                code.push(cf, pc + 4);
+                store(code, rd);
+                code.push(cf, block.takenPc).var(ISTORE, NEXT_PC);
+                break;
+            case Op.JALR:
+                load(code, rs1);
+                code.push(cf, block.imm[last]).op(IADD).push(cf, 0xFFFFFFFE).op(IAND);
+                code.var(ISTORE, NEXT_PC);
+                code.push(cf, pc + 4);
+                store(code, rd);
+                break;
+            default:
+                // ECALL, instructions only the single-step path implements, and blocks cut off by Block.MAX_LENGTH
+                writeBack(cf, code, used);
+                code.var(ALOAD, CPU_LOCAL).push(cf, pc).op(INVOKEVIRTUAL).u2(cf.methodRef(CPU, "step", "(I)I"));
+                code.op(IRETURN);
+                break;
+        }
+
+        code.mark(exit);
+        writeBack(cf, code, used);
+        code.var(ILOAD, NEXT_PC).op(IRETURN);
+
+        cf.addMethod("execute", EXECUTE, code, 8, NEXT_PC + 1);
+        return cf.toByteArray();
+    }
+
+    // Emits one non-terminating instruction
+    private static void emitInstruction(ClassFileWriter cf, Code code, Block block, int i, int exit) {
+        int rd = block.rd[i], rs1 = block.rs1[i], rs2 = block.rs2[i], imm = block.imm[i];
+        switch(block.op[i]){
+            case Op.ADD:   binary(code, rs1, rs2, IADD, rd); break;
+            case Op.SUB:   binary(code, rs1, rs2, ISUB, rd); break;
+            case Op.SLL:   binary(code, rs1, rs2, ISHL, rd); break;
+            case Op.XOR:   binary(code, rs1, rs2, IXOR, rd); break;
+            case Op.SRL:   binary(code, rs1, rs2, IUSHR, rd); break;
+            case Op.SRA:   binary(code, rs1, rs2, ISHR, rd); break;
+            case Op.OR:    binary(code, rs1, rs2, IOR, rd); break;
+            case Op.AND:   binary(code, rs1, rs2, IAND, rd); break;
+            case Op.SLT:
+                load(code, rs1);
+                load(code, rs2);
+                setIf(code, IF_ICMPLT, rd);
+                break;
+            case Op.SLTU:
+                load(code, rs1);
+                load(code, rs2);
+                compareUnsigned(cf, code);
+                setIf(code, IFLT, rd);
+                break;
+
+            case Op.ADDI:  immediate(cf, code, rs1, imm, IADD, rd); break;
+            case Op.XORI:  immediate(cf, code, rs1, imm, IXOR, rd); break;
+            case Op.ORI:   immediate(cf, code, rs1, imm, IOR, rd); break;
+            case Op.ANDI:  immediate(cf, code, rs1, imm, IAND, rd); break;
+            case Op.SLLI:  immediate(cf, code, rs1, imm, ISHL, rd); break;
+            case Op.SRLI:  immediate(cf, code, rs1, imm, IUSHR, rd); break;
+            case Op.SRAI:  immediate(cf, code, rs1, imm, ISHR, rd); break;
+            case Op.SLTI:
+                load(code, rs1);
+                code.push(cf, imm);
+                setIf(code, IF_ICMPLT, rd);
+                break;
+            case Op.SLTIU:
+                load(code, rs1);
+                code.push(cf, imm);
+                compareUnsigned(cf, code);
+                setIf(code, IFLT, rd);
+                break;
+
+            case Op.LB:    memoryLoad(cf, code, rs1, imm, "getByte", "(I)B", 0, rd); break;
+            case Op.LH:    memoryLoad(cf, code, rs1, imm, "getHalfWord", "(I)I", 0, rd); break;
+            case Op.LW:    memoryLoad(cf, code, rs1, imm, "getWord", "(I)I", 0, rd); break;
+            case Op.LBU:   memoryLoad(cf, code, rs1, imm, "getByte", "(I)B", 0xFF, rd); break;
+            case Op.LHU:   memoryLoad(cf, code, rs1, imm, "getHalfWord", "(I)I", 0xFFFF, rd); break;
+
+            case Op.SB:    memoryStore(cf, code, block, i, "storeByte", "(II)V", exit); break;
+            case Op.SH:    memoryStore(cf, code, block, i, "storeHalfWord", "(IS)V", exit); break;
+            case Op.SW:    memoryStore(cf, code, block, i, "storeWord", "(II)V", exit); break;
+
+            case Op.LUI:
+                code.push(cf, imm);
+                store(code, rd);
+                break;
+            case Op.AUIPC:
+                code.push(cf, block.start + (i << 2) + imm);
+                store(code, rd);
+                break;
+        }
+    }
+
+    // Registers read or written by the block, except x0
+    private static boolean[] usedRegisters(Block block) {
+        boolean[] used = new boolean[32];
+        for(int i = 0; i < block.length; i++){
+            switch(block.op[i]){
+                case Op.ADD: case Op.SUB: case Op.SLL: case Op.SLT: case Op.SLTU:
+                case Op.XOR: case Op.SRL: case Op.SRA: case Op.OR: case Op.AND:
+                    used[block.rd[i]] = used[block.rs1[i]] = used[block.rs2[i]] = true;
+                    break;
+                case Op.SB: case Op.SH: case Op.SW:
+                case Op.BEQ: case Op.BNE: case Op.BLT: case Op.BGE: case Op.BLTU: case Op.BGEU:
+                    used[block.rs1[i]] = used[block.rs2[i]] = true;
+                    break;
+                case Op.JAL: case Op.LUI: case Op.AUIPC:
+                    used[block.rd[i]] = true;
+                    break;
+                case Op.OTHER: case Op.ECALL:
+                    break;
+                default: // I-type integer, loads and JALR
+                    used[block.rd[i]] = used[block.rs1[i]] = true;
+                    break;
+            }
+        }
+        used[0] = false;
+        return used;
+    }
+
+    // Pushes register r, reading x0 as the constant 0
+    private static void load(Code code, int r) {
+        if(r == 0) code.op(ICONST_0);
+        else code.var(ILOAD, REG_BASE + r);
+    }
+
+    // Pops the top of the stack into register r, discarding writes to x0
+    private static void store(Code code, int r) {
+        if(r == 0) code.op(POP);
+        else code.var(ISTORE, REG_BASE + r);
+    }
+
+    private static void writeBack(ClassFileWriter cf, Code code, boolean[] used) {
+        for(int r = 1; r < 32; r++){
+            if(!used[r]) continue;
+            code.var(ALOAD, REG_LOCAL).push(cf, r).var(ILOAD, REG_BASE + r).op(IASTORE);
+        }
+    }
+
+    private static void binary(Code code, int rs1, int rs2, int opcode, int rd) {
+        load(code, rs1);
+        load(code, rs2);
+        code.op(opcode);
+        store(code, rd);
+    }
+
+    private static void immediate(ClassFileWriter cf, Code code, int rs1, int imm, int opcode, int rd) {
+        load(code, rs1);
+        code.push(cf, imm).op(opcode);
+        store(code, rd);
+    }
+
+    // Replaces the two ints on the stack with Integer.compareUnsigned of them
+    private static void compareUnsigned(ClassFileWriter cf, Code code) {
+        code.op(INVOKESTATIC).u2(cf.methodRef("java/lang/Integer", "compareUnsigned", "(II)I"));
+    }
+
+    // Sets rd to 1 if the jump condition on the stack holds, otherwise 0
+    private static void setIf(Code code, int jumpOpcode, int rd) {
+        int set = code.newLabel(), done = code.newLabel();
+        code.jump(jumpOpcode, set);
+        code.op(ICONST_0).jump(GOTO, done);
+        code.mark(set);
+        code.op(ICONST_1);
+        code.mark(done);
+        store(code, rd);
+    }
+
+    private static void memoryLoad(ClassFileWriter cf, Code code, int rs1, int imm, String method, String descriptor,
+                                   int mask, int rd) {
+        code.var(ALOAD, MEMORY_LOCAL);
+        load(code, rs1);
+        code.push(cf, imm).op(IADD);
+        code.op(INVOKEVIRTUAL).u2(cf.methodRef(MEMORY, method, descriptor));
+        if(mask != 0) code.push(cf, mask).op(IAND);
+        store(code, rd);
+    }
+
+    // Stores rs2 and leaves the block right after the store if it overwrote the block's own code
+    private static void memoryStore(ClassFileWriter cf, Code code, Block block, int i, String method, String descriptor,
+                                    int exit) {
+        code.var(ALOAD, MEMORY_LOCAL);
+        load(code, block.rs1[i]);
+        code.push(cf, block.imm[i]).op(IADD);
+        load(code, block.rs2[i]);
+        if(descriptor.equals("(IS)V")) code.op(I2S);
+        code.op(INVOKEVIRTUAL).u2(cf.methodRef(MEMORY, method, descriptor));
+
+        int stillValid = code.newLabel();
+        code.var(ALOAD, BLOCK_LOCAL).op(GETFIELD).u2(cf.fieldRef(BLOCK, "valid", "Z"));
+        code.jump(IFNE, stillValid);
+        code.push(cf, block.start + ((i + 1) << 2)).var(ISTORE, NEXT_PC).jump(GOTO, exit);
+        code.mark(stillValid);
+    }
+}
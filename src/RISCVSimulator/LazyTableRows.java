@@ -0,0 +1,56 @@
+/* File: LazyTableRows.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file is a virtual list of table rows, used for the program and memory tables.
+ * A row is only created when the table asks for it, which it does for the visible rows,
+ * and its value is only formatted when it is displayed. Only the last CACHE_SIZE rows asked for are kept,
+ * so tables with millions of rows are created instantly and use little memory.
+ */
+
+package RISCVSimulator;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+class LazyTableRows extends AbstractList<TableHelper> {
+    private static final int CACHE_SIZE = 512;
+    private final int size;
+    private final IntFunction<String> name;     // Formats the name column of a row
+    private final IntFunction<String> value;    // Formats the value column of a row
+    private final Map<Integer, TableHelper> rows = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TableHelper> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    LazyTableRows(int size, IntFunction<String> name, IntFunction<String> value) {
+        this.size = size;
+        this.name = name;
+        this.value = value;
+    }
+
+    @Override
+    public TableHelper get(int index) {
+        Objects.checkIndex(index, size);
+        TableHelper row = rows.get(index);
+        if(row == null){
+            row = new TableHelper(name.apply(index), () -> value.apply(index));
+            rows.put(index, row);
+        }
+        return row;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Drops all kept rows, so their values are formatted again the next time they are displayed
+    void invalidate() {
+        rows.clear();
+    }
+}
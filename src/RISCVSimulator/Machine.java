@@ -0,0 +1,95 @@
+/* File: Machine.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file runs several harts (hardware threads) that share one memory, each on its own platform thread.
+ * Every hart has its own CPU, view of the memory and decode cache, so harts only interact through memory,
+ * and a guest using several harts runs on several host cores.
+ * A hart finds its ID in a0 when it starts, and can read it with csrr rd, mhartid.
+ * All harts start at the program's entry point, with stacks STACK_SIZE bytes apart below the top of memory.
+ */
+
+package RISCVSimulator;
+
+public class Machine {
+    static final int STACK_SIZE = 64 * 1024;   // Distance between the initial stack pointers of the harts
+
+    final Memory memory;
+    final CPU[] harts;
+
+    /**
+     * Constructor
+     * Hart 0 uses the given memory and program, the others get their own view of the memory and copy of the program.
+     * Images must be mapped into the memory before.
+     */
+    Machine(Memory memory, Program program, int harts) {
+        this(memory, copies(program, harts));
+    }
+
+    /**
+     * Constructor
+     * Hart i runs programs[i], which must be copies of the same program, so decode caches and compiled blocks
+     * can be kept from one run to the next. A program must not be used by two harts at once.
+     */
+    Machine(Memory memory, Program[] programs) {
+        this.memory = memory;
+        this.harts = new CPU[programs.length];
+        for(int i = 0; i < programs.length; i++){
+            CPU cpu = new CPU(i == 0 ? memory : new Memory(memory), programs[i], i);
+            cpu.reg[2] -= i * STACK_SIZE;
+            cpu.reg[10] = i;
+            this.harts[i] = cpu;
+        }
+    }
+
+    /**
+     * Returns the program followed by harts - 1 copies of it, one for each hart.
+     */
+    static Program[] copies(Program program, int harts) {
+        Program[] programs = new Program[harts];
+        for(int i = 0; i < harts; i++) programs[i] = i == 0 ? program : program.copy();
+        return programs;
+    }
+
+    /**
+     * Sets where the printing ECALLs of every hart write. The sink is used by all hart threads at once, so it must be
+     * thread-safe, as StreamSink and ConsoleBuffer are.
+     */
+    void setOutput(OutputSink out) {
+        for(CPU cpu : harts) cpu.setOutput(out);
+    }
+
+    /**
+     * Runs every hart until it leaves the program, each on its own thread, and waits for all of them.
+     * @return Number of instructions retired by all harts
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    long run() throws InterruptedException {
+        long total = 0;
+        for(RunResult result : run(Long.MAX_VALUE, 0)) total += result.retired;
+        return total;
+    }
+
+    /**
+     * Runs every hart until it leaves the program or exceeds a limit, see CPU.run(long, long).
+     * Each hart has its own limits, so a hart spinning on a lock that is never released stops on its own.
+     * @param maxInstructions: Instruction budget of each hart, Long.MAX_VALUE for none
+     * @param timeoutMillis: Wall-clock limit, 0 for none
+     * @return How the run of each hart ended
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    RunResult[] run(long maxInstructions, long timeoutMillis) throws InterruptedException {
+        RunResult[] results = new RunResult[harts.length];
+        if(harts.length == 1){
+            results[0] = harts[0].run(maxInstructions, timeoutMillis);
+            return results;
+        }
+        Thread[] threads = new Thread[harts.length];
+        for(int i = 0; i < harts.length; i++){
+            int hart = i;
+            threads[i] = new Thread(() -> results[hart] = harts[hart].run(maxInstructions, timeoutMillis), "RISC-V hart " + i);
+            threads[i].start();
+        }
+        for(Thread thread : threads) thread.join();
+        return results;
+    }
+}
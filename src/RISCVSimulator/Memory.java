@@ -1,72 +1,560 @@
 /* File: Memory.java
  * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
  *
- * The following file defines a memory byte array and handles input and output of this array.
- * The array is able to store and load: bytes, halfwords and words. 
+ * The following file defines the memory of the simulator and handles input and output of it.
+ * The memory is able to store and load: bytes, halfwords and words.
+ * It covers the full 32-bit address space as 4KiB pages that are only allocated when first written,
+ * so resident memory follows what the program actually touches. Unwritten memory reads as 0.
+ * The last used page is cached in front of the page table (a one-entry TLB), so the common case of
+ * repeated accesses to the same page costs one compare more than a flat array.
+ * Halfwords and words are read and written as single little-endian accesses through VarHandle views of a page,
+ * which also works for unaligned addresses.
+ * Read-only images, such as memory-mapped files or direct buffers, can be mapped into the address space.
+ * They are read in place until a page is first written, then that page is copied to the heap (copy-on-write),
+ * so large images load without copying and can be shared by several memories. The last unwritten page read from an
+ * image is cached like the last used page, as a read-only view of the image, so code and data read in place stay
+ * off the image search. The view is dropped when this memory writes the page, and with several views as soon as any
+ * page is allocated, which may be this one.
+ * Harts running on separate threads each use their own view of a shared memory (see Memory(Memory)): the views share
+ * the pages, but each has its own last used page, so the fast paths need no locking. Pages are allocated under a lock
+ * and published with release stores. The RV32A atomics are compare-and-set loops on the page's VarHandle view.
+ * LR.W reserves a word in the view of its hart. With several views, every word also belongs to one of
+ * RESERVATION_STRIPES stripes with a version, which stores and AMOs bump while they hold the stripe (a seqlock), so
+ * SC.W fails if any hart stored to the stripe since the LR.W, even the value it loaded. A single memory keeps the
+ * fast paths, as no other hart can store in between.
  */
 package RISCVSimulator;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntBinaryOperator;
+
 public class Memory {
-    private byte[] memory;
+    static final int DEFAULT_SIZE = 10485760;   // 10MiB memory, used by GUI and headless runners
+    static final long ADDRESS_SPACE = 1L << 32; // Size of the full 32-bit address space
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;    // 4KiB pages
+    private static final int OFFSET_MASK = PAGE_SIZE - 1;
+    private static final int TABLE_BITS = 10;       // Page number is split into two 10 bit table indices
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+    private static final int RESERVATION_STRIPES = 256;     // Stripes of words versioned for SC.W, a power of two
+    private static final int STRIPE_STRIDE = 16;            // Ints between versions, one cache line per stripe
+    private static final int SPINS = 64;                    // Spins waiting for a held stripe before yielding
+
+    private static final VarHandle HALF_WORD = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle WORD = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle TABLES = MethodHandles.arrayElementVarHandle(byte[][][].class);
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(byte[][].class);
+
+    private final long size;                    // Size the program sees, the stack starts at its last address
+    private final byte[][][] pageTable;         // Shared by all views, also the lock for allocating pages
+    private final AtomicInteger allocatedPages;
+    private int lastPageNumber = -1;            // Page number of lastPage, -1 is not a valid page number
+    private byte[] lastPage;                    // Last page accessed, always an allocated page
+    private int imagePageNumber = -1;           // Page number of imagePage, -1 if none
+    private ByteBuffer imagePage;               // Read-only view of the last unwritten page read from an image
+    private int imageStamp;                     // allocatedPages when imagePage was found unwritten
+    private boolean shared;                     // Other views use the same pages, see Memory(Memory)
+    private Image[] images = new Image[0];      // Mapped images, later images cover earlier ones
+    private AtomicIntegerArray versions;        // Shared by all views, version of every stripe, odd while held
+    private boolean reserved;                   // Set by loadReserved, cleared by storeConditional
+    private int reservedAddr;                   // Address of the reservation
+    private int reservedVersion;                // Version of the reserved word's stripe when it was loaded
+    private int reservedValue;                  // Word loaded, SC.W compares it for misaligned words with views
+
+    private int codeStart;                      // Stores to codeStart to codeStart+codeSize-1 are reported to codeListener
+    private int codeSize;
+    private CodeWriteListener codeListener;
+
+    // Notified after a store into the watched code region
+    interface CodeWriteListener {
+        void codeWritten(int addr, int bytes);
+    }
+
+    // Read-only little-endian image of the addresses start to end-1
+    private static final class Image {
+        final long start, end;
+        final ByteBuffer data;
+
+        Image(long start, ByteBuffer data) {
+            this.start = start;
+            this.end = start + data.remaining();
+            this.data = data;
+        }
+    }
 
     /**
      * Constructor for Memory
-     * Initializes as a byte array of size given by argument
+     * The size given by argument is where the stack starts;
+     * every 32-bit address can be accessed regardless of it. Nothing is allocated up front.
      */
-    Memory(int MEMORY_SIZE_IN_BYTES){
-        memory = new byte[MEMORY_SIZE_IN_BYTES];
+    Memory(long MEMORY_SIZE_IN_BYTES){
+        size = MEMORY_SIZE_IN_BYTES;
+        pageTable = new byte[1 << TABLE_BITS][][];
+        allocatedPages = new AtomicInteger();
+    }
+
+    /**
+     * Constructor for a view of another memory, used by each hart of a multi-hart machine.
+     * The view reads and writes the same pages, but has its own last used page and code watch,
+     * so every hart can use its view on its own thread. Images must be mapped before the view is created.
+     */
+    Memory(Memory shared){
+        size = shared.size;
+        pageTable = shared.pageTable;
+        allocatedPages = shared.allocatedPages;
+        images = shared.images;
+        shared.shared = true;
+        this.shared = true;
+        if(shared.versions == null) shared.versions = new AtomicIntegerArray(RESERVATION_STRIPES * STRIPE_STRIDE);
+        versions = shared.versions;
+    }
+
+    // Memory covering the full 32-bit address space
+    Memory(){
+        this(ADDRESS_SPACE);
     }
 
-    // Stores a single byte in the memory array
+    // Stores a single byte in memory
     void storeByte (int addr, int data) {
-        memory[addr] = (byte) (data & 0xFF);
+        if(lastPageNumber == addr >>> PAGE_BITS && versions == null){
+            lastPage[addr & OFFSET_MASK] = (byte) data;
+        } else {
+            storeSlow(addr, data, 1);
+        }
+        if(Integer.compareUnsigned(addr - codeStart, codeSize) < 0) codeListener.codeWritten(addr, 1);
     }
 
-    // Stores a half word in the memory array
+    // Stores a half word in memory
     void storeHalfWord(int addr, short data) {
-        memory[addr]    = (byte) ((data & 0x00FF));
-        memory[addr+1]  = (byte) ((data & 0xFF00) >>> 8);
+        int offset = addr & OFFSET_MASK;
+        if(lastPageNumber == addr >>> PAGE_BITS && offset <= PAGE_SIZE - 2 && versions == null){
+            HALF_WORD.set(lastPage, offset, data);
+        } else {
+            storeSlow(addr, data, 2);
+        }
+        if(Integer.compareUnsigned(addr - codeStart, codeSize) < 0) codeListener.codeWritten(addr, 2);
     }
 
-    // Stores a word in the memory array
+    // Stores a word in memory
     void storeWord(int addr, int data) {
-        memory[addr]    = (byte) ((data & 0x000000FF));
-        memory[addr+1]  = (byte) ((data & 0x0000FF00) >>> 8);
-        memory[addr+2]  = (byte) ((data & 0x00FF0000) >>> 16);
-        memory[addr+3]  = (byte) ((data & 0xFF000000) >>> 24);
+        int offset = addr & OFFSET_MASK;
+        if(lastPageNumber == addr >>> PAGE_BITS && offset <= PAGE_SIZE - 4 && versions == null){
+            WORD.set(lastPage, offset, data);
+        } else {
+            storeSlow(addr, data, 4);
+        }
+        if(Integer.compareUnsigned(addr - codeStart, codeSize) < 0) codeListener.codeWritten(addr, 4);
     }
 
     // Returns the byte in the memory given by the address.
     byte getByte (int addr) {
-        return memory[addr];
+        if(lastPageNumber == addr >>> PAGE_BITS) return lastPage[addr & OFFSET_MASK];
+        ByteBuffer image = imagePage(addr >>> PAGE_BITS);
+        if(image != null) return image.get(addr & OFFSET_MASK);
+        byte[] page = readablePage(addr >>> PAGE_BITS);
+        return page == null ? imageByte(addr) : page[addr & OFFSET_MASK];
     }
 
-    // Returns half word from memory given by address
+    // Returns sign-extended half word from memory given by address
     int getHalfWord(int addr){
-        return (getByte(addr+1) << 8) | (getByte(addr) & 0xFF);
+        int offset = addr & OFFSET_MASK;
+        if(lastPageNumber == addr >>> PAGE_BITS && offset <= PAGE_SIZE - 2) return (short) HALF_WORD.get(lastPage, offset);
+        return loadSlow(addr, 2);
     }
 
     // Returns word from memory given by address
     int getWord(int addr){
-        return (getHalfWord(addr+2) << 16) | (getHalfWord(addr) & 0xFFFF);
+        int offset = addr & OFFSET_MASK;
+        if(lastPageNumber == addr >>> PAGE_BITS && offset <= PAGE_SIZE - 4) return (int) WORD.get(lastPage, offset);
+        return loadSlow(addr, 4);
     }
 
-    // Returns string starting at the address given and ends when next memory address is zero.
+    /**
+     * Returns word from memory given by address without changing the last used page.
+     * Used by the GUI to display memory, also while the program is running on another thread.
+     */
+    int peekWord(int addr){
+        int offset = addr & OFFSET_MASK;
+        if(offset > PAGE_SIZE - 4){    // Crosses a page boundary, combine the last word of this page and the first of the next
+            int inThisPage = PAGE_SIZE - offset;
+            int low = peekWord(addr - offset + PAGE_SIZE - 4) >>> (8 * (4 - inThisPage));
+            return (peekWord(addr - offset + PAGE_SIZE) << (8 * inThisPage)) | low;
+        }
+        byte[] page = page(addr >>> PAGE_BITS);
+        return page == null ? imageLoad(addr, 4) : (int) WORD.get(page, offset);
+    }
+
+    /**
+     * Returns string starting at the address given and ends when next memory address is zero.
+     * Bytes are read as ISO-8859-1 characters, a page at a time.
+     */
     String getString(int addr){
-        String returnValue = "";
-        int i = 0;
-        while(memory[addr+i] != 0){
-	    returnValue += (char) (memory[addr+i]);
-	    i++;
+        StringBuilder returnValue = new StringBuilder();
+        while(true){
+            byte[] page = lastPageNumber == addr >>> PAGE_BITS ? lastPage : readablePage(addr >>> PAGE_BITS);
+            if(page == null){   // Unwritten page, only an image can hold the string
+                byte b = imageByte(addr);
+                if(b == 0) return returnValue.toString();
+                returnValue.append((char) (b & 0xFF));
+                addr++;
+                continue;
+            }
+            int offset = addr & OFFSET_MASK;
+            int end = offset;
+            while(end < PAGE_SIZE && page[end] != 0) end++;
+            returnValue.append(new String(page, offset, end - offset, StandardCharsets.ISO_8859_1));
+            if(end < PAGE_SIZE) return returnValue.toString();
+            addr += end - offset;
+        }
+    }
+
+    /**
+     * Reports all later stores to addresses start to end-1 to the listener. The region may wrap around address 0.
+     * Only one code region is watched; a new call replaces the previous listener.
+     */
+    void watchCode(int start, int end, CodeWriteListener listener) {
+        this.codeStart = start;
+        this.codeSize = end - start;
+        this.codeListener = listener;
+    }
+
+    /**
+     * Maps a read-only image at the given address, e.g. a memory-mapped file or a direct buffer.
+     * The bytes from the buffer's position to its limit are not copied; pages are read from the image
+     * until they are first written. The buffer must not be changed afterwards, but may be shared between memories.
+     * Pages already written in the range are overwritten with the image.
+     */
+    void mapImage(int addr, ByteBuffer data) {
+        long start = addr & 0xFFFFFFFFL;
+        if(start + data.remaining() > ADDRESS_SPACE){
+            throw new IllegalArgumentException("Image does not fit in the 32-bit address space");
+        }
+        Image image = new Image(start, data.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN));
+        images = Arrays.copyOf(images, images.length + 1);
+        images[images.length - 1] = image;
+        imagePageNumber = -1;
+
+        for(long pageNumber = start >>> PAGE_BITS; pageNumber << PAGE_BITS < image.end; pageNumber++){
+            byte[] page = page((int) pageNumber);
+            if(page != null) copyFromImage(image, (int) pageNumber, page);
+        }
+    }
+
+    // Size given to the constructor, the stack starts at its last address
+    long size() {
+        return size;
+    }
+
+    // Number of bytes allocated for pages that have been written
+    long residentBytes() {
+        return (long) allocatedPages.get() * PAGE_SIZE;
+    }
+
+    /* PAGE TABLE */
+
+    // Returns the page, or null if it has never been written. Acquire reads pair with the release stores of allocatePage.
+    private byte[] page(int pageNumber) {
+        byte[][] table = (byte[][]) TABLES.getAcquire(pageTable, pageNumber >>> TABLE_BITS);
+        return table == null ? null : (byte[]) PAGES.getAcquire(table, pageNumber & TABLE_MASK);
+    }
+
+    // Returns the page for reading, or null if it has never been written
+    private byte[] readablePage(int pageNumber) {
+        int stamp = allocatedPages.get();   // Read first: a page allocated after it changes the count
+        byte[] page = page(pageNumber);
+        if(page != null){
+            lastPageNumber = pageNumber;
+            lastPage = page;
+        } else {
+            cacheImagePage(pageNumber, stamp);
+        }
+        return page;
+    }
+
+    // Returns the cached view of the unwritten image page, or null if it is another page or another view may have
+    // allocated it since
+    private ByteBuffer imagePage(int pageNumber) {
+        return pageNumber == imagePageNumber && (!shared || allocatedPages.get() == imageStamp) ? imagePage : null;
+    }
+
+    // Caches a view of the unwritten page if one image covers all of it and no later image covers part of it
+    private void cacheImagePage(int pageNumber, int stamp) {
+        long base = (pageNumber & 0xFFFFFFFFL) << PAGE_BITS;
+        for(int i = images.length - 1; i >= 0; i--){
+            Image image = images[i];
+            if(base >= image.start && base + PAGE_SIZE <= image.end){
+                imagePageNumber = pageNumber;
+                imagePage = image.data.slice((int) (base - image.start), PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                imageStamp = stamp;
+                return;
+            }
+            if(base + PAGE_SIZE > image.start && base < image.end) return;    // Partly covered
         }
-        return returnValue;
     }
 
-    byte[] getMemory() {
-        return memory;
+    // Returns the page for writing, allocating it on first use and filling it from the images
+    private byte[] writablePage(int pageNumber) {
+        if(pageNumber == imagePageNumber) imagePageNumber = -1;     // Copied on write, the image is read no more
+        byte[] page = page(pageNumber);
+        if(page == null) page = allocatePage(pageNumber);
+        lastPageNumber = pageNumber;
+        lastPage = page;
+        return page;
     }
-	
-    void setMemory(byte[] mem){
-        this.memory = mem;
+
+    // Allocates a page, unless another view allocated it first
+    private byte[] allocatePage(int pageNumber) {
+        synchronized(pageTable){
+            byte[][] table = pageTable[pageNumber >>> TABLE_BITS];
+            if(table == null){
+                table = new byte[1 << TABLE_BITS][];
+                TABLES.setRelease(pageTable, pageNumber >>> TABLE_BITS, table);
+            }
+            byte[] page = table[pageNumber & TABLE_MASK];
+            if(page == null){
+                page = new byte[PAGE_SIZE];
+                for(Image image : images) copyFromImage(image, pageNumber, page);
+                PAGES.setRelease(table, pageNumber & TABLE_MASK, page);
+                allocatedPages.incrementAndGet();
+            }
+            return page;
+        }
+    }
+
+    // Loads a sign-extended halfword or a word whose page is not the last used page, or that crosses a page boundary
+    private int loadSlow(int addr, int bytes) {
+        int offset = addr & OFFSET_MASK;
+        if(offset <= PAGE_SIZE - bytes){
+            ByteBuffer image = imagePage(addr >>> PAGE_BITS);
+            if(image != null) return bytes == 2 ? image.getShort(offset) : image.getInt(offset);
+            byte[] page = readablePage(addr >>> PAGE_BITS);
+            if(page == null) return imageLoad(addr, bytes);
+            return bytes == 2 ? (short) HALF_WORD.get(page, offset) : (int) WORD.get(page, offset);
+        }
+        int value = 0;
+        for(int i = bytes - 1; i >= 0; i--){
+            value = (value << 8) | (getByte(addr+i) & 0xFF);
+        }
+        return bytes == 2 ? (short) value : value;
+    }
+
+    /**
+     * Stores a byte, halfword or word whose page is not the last used page, that crosses a page boundary,
+     * or that goes to memory shared with other views, where it bumps the versions of the stripes it writes.
+     * The pages are allocated before the stripes are held, as misaligned atomics hold the page table lock first.
+     */
+    private void storeSlow(int addr, int data, int bytes) {
+        if(versions == null){
+            write(addr, data, bytes);
+            return;
+        }
+        writablePage((addr + bytes - 1) >>> PAGE_BITS);
+        writablePage(addr >>> PAGE_BITS);
+        int first = stripe(addr), last = stripe(addr + bytes - 1);
+        int low = Math.min(first, last), high = Math.max(first, last);  // Held in index order
+        hold(low);
+        if(high != low) hold(high);
+        write(addr, data, bytes);
+        if(high != low) release(high);
+        release(low);
+    }
+
+    // Writes a byte, halfword or word, also across a page boundary
+    private void write(int addr, int data, int bytes) {
+        int offset = addr & OFFSET_MASK;
+        if(offset <= PAGE_SIZE - bytes){
+            byte[] page = writablePage(addr >>> PAGE_BITS);
+            if(bytes == 1) page[offset] = (byte) data;
+            else if(bytes == 2) HALF_WORD.set(page, offset, (short) data);
+            else WORD.set(page, offset, data);
+            return;
+        }
+        for(int i = 0; i < bytes; i++){
+            writablePage((addr+i) >>> PAGE_BITS)[(addr+i) & OFFSET_MASK] = (byte) (data >>> (8*i));
+        }
+    }
+
+    // Index in versions of the stripe holding the word at the address
+    private static int stripe(int addr) {
+        return ((addr >>> 2) & (RESERVATION_STRIPES - 1)) * STRIPE_STRIDE;
+    }
+
+    // Waits until no other store holds the stripe, then holds it by making its version odd
+    private void hold(int stripe) {
+        int version;
+        for(int spins = 0; ((version = versions.get(stripe)) & 1) != 0
+                || !versions.compareAndSet(stripe, version, version + 1); spins++){
+            pause(spins);
+        }
+    }
+
+    // Spins a while, then gives the core to the hart that holds the stripe, which may have been descheduled
+    private static void pause(int spins) {
+        if(spins < SPINS) Thread.onSpinWait();
+        else Thread.yield();
+    }
+
+    // Releases a held stripe with the next even version
+    private void release(int stripe) {
+        versions.setRelease(stripe, versions.get(stripe) + 1);
+    }
+
+    /* ATOMICS */
+
+    /**
+     * Returns the word at the address with volatile semantics, used by LR.W.
+     */
+    int getWordVolatile(int addr) {
+        if((addr & 3) != 0){
+            synchronized(pageTable){
+                return getWord(addr);
+            }
+        }
+        byte[] page = readablePage(addr >>> PAGE_BITS);
+        return page == null ? imageLoad(addr, 4) : (int) WORD.getVolatile(page, addr & OFFSET_MASK);
+    }
+
+    /**
+     * Returns the word at the address with volatile semantics and reserves it for storeConditional, used by LR.W.
+     * With other views, the version of the word's stripe is read first, waiting while a store holds it.
+     */
+    int loadReserved(int addr) {
+        if(versions != null){
+            int stripe = stripe(addr);
+            for(int spins = 0; ((reservedVersion = versions.get(stripe)) & 1) != 0; spins++) pause(spins);
+        }
+        reservedAddr = addr;
+        reserved = true;
+        return reservedValue = getWordVolatile(addr);
+    }
+
+    /**
+     * Stores value at the address if this view still holds a reservation of it, used by SC.W. The reservation is
+     * cleared either way. With other views, the store takes the stripe from the version seen by loadReserved,
+     * so it fails if any hart stored to the stripe since, also when the word holds the loaded value again.
+     * @return True if the word was stored
+     */
+    boolean storeConditional(int addr, int value) {
+        boolean held = reserved && reservedAddr == addr;
+        reserved = false;
+        if(!held) return false;
+        if(versions == null){   // No other hart can have stored in between
+            storeWord(addr, value);
+            return true;
+        }
+        if((addr & 3) != 0){    // Misaligned words are only atomic with respect to other misaligned atomics
+            synchronized(pageTable){
+                held = getWord(addr) == reservedValue;
+                if(held) storeWord(addr, value);
+            }
+            return held;
+        }
+        byte[] page = writablePage(addr >>> PAGE_BITS);
+        int stripe = stripe(addr);
+        if(!versions.compareAndSet(stripe, reservedVersion, reservedVersion + 1)) return false;
+        WORD.setVolatile(page, addr & OFFSET_MASK, value);
+        versions.setRelease(stripe, reservedVersion + 2);
+        if(Integer.compareUnsigned(addr - codeStart, codeSize) < 0) codeListener.codeWritten(addr, 4);
+        return true;
+    }
+
+    // True while this view holds a reservation made by loadReserved, saved with the step by History
+    boolean reserved() {
+        return reserved;
+    }
+
+    // Address of the reservation, only meaningful while reserved()
+    int reservedAddr() {
+        return reservedAddr;
+    }
+
+    // Word loaded by the reservation, only meaningful while reserved()
+    int reservedValue() {
+        return reservedValue;
+    }
+
+    /**
+     * Sets the reservation back to a state saved by History when a step is rewound.
+     * Only used with a single memory, which has no stripe versions to restore.
+     */
+    void restoreReservation(boolean reserved, int addr, int value) {
+        this.reserved = reserved;
+        reservedAddr = addr;
+        reservedValue = value;
+    }
+
+    /**
+     * Atomically replaces the word at the address with update(old word, value), used by the AMO instructions.
+     * @return The old word
+     */
+    int getAndUpdateWord(int addr, int value, IntBinaryOperator update) {
+        int old;
+        if((addr & 3) != 0){
+            synchronized(pageTable){
+                old = getWord(addr);
+                storeWord(addr, update.applyAsInt(old, value));
+            }
+            return old;
+        }
+        byte[] page = writablePage(addr >>> PAGE_BITS);
+        int offset = addr & OFFSET_MASK;
+        if(versions != null){   // Bumps the version like a store, so reservations of the word are lost
+            int stripe = stripe(addr);
+            hold(stripe);
+            old = (int) WORD.getVolatile(page, offset);
+            WORD.setVolatile(page, offset, update.applyAsInt(old, value));
+            release(stripe);
+        } else {
+            do {
+                old = (int) WORD.getVolatile(page, offset);
+            } while(!WORD.compareAndSet(page, offset, old, update.applyAsInt(old, value)));
+        }
+        if(Integer.compareUnsigned(addr - codeStart, codeSize) < 0) codeListener.codeWritten(addr, 4);
+        return old;
+    }
+
+    /* IMAGES */
+
+    // Returns the byte at the address in the latest image covering it, or 0 if no image covers it
+    private byte imageByte(int addr) {
+        long address = addr & 0xFFFFFFFFL;
+        for(int i = images.length - 1; i >= 0; i--){
+            Image image = images[i];
+            if(address >= image.start && address < image.end) return image.data.get((int) (address - image.start));
+        }
+        return 0;
+    }
+
+    // Loads a sign-extended halfword or a word from an unwritten page
+    private int imageLoad(int addr, int bytes) {
+        long address = addr & 0xFFFFFFFFL;
+        for(int i = images.length - 1; i >= 0; i--){
+            Image image = images[i];
+            if(address >= image.start && address + bytes <= image.end){
+                int index = (int) (address - image.start);
+                return bytes == 2 ? image.data.getShort(index) : image.data.getInt(index);
+            }
+            if(address + bytes > image.start && address < image.end) break;    // Partly covered
+        }
+        int value = 0;
+        for(int i = bytes - 1; i >= 0; i--){
+            value = (value << 8) | (imageByte(addr+i) & 0xFF);
+        }
+        return bytes == 2 ? (short) value : value;
+    }
+
+    // Copies the part of the image that overlaps the page into it
+    private static void copyFromImage(Image image, int pageNumber, byte[] page) {
+        long base = (long) pageNumber << PAGE_BITS;
+        long from = Math.max(base, image.start);
+        long to = Math.min(base + PAGE_SIZE, image.end);
+        if(from < to) image.data.get((int) (from - image.start), page, (int) (from - base), (int) (to - from));
     }
 }
@@ -0,0 +1,107 @@
+/* File: Op.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file defines a flat operation id for every implemented RV32I instruction.
+ * Resolving opcode, funct3 and funct7 to one id is done once per instruction (see Program),
+ * so the CPU run loop can dispatch on a single switch instead of re-decoding every instruction.
+ */
+
+package RISCVSimulator;
+
+final class Op {
+    // Anything the fast path does not handle itself, executed through CPU.executeInstruction()
+    static final int OTHER = 0;
+
+    // Not decoded yet, Program decodes an instruction the first time it is executed
+    static final int UNDECODED = -1;
+
+    // R-type
+    static final int ADD = 1, SUB = 2, SLL = 3, SLT = 4, SLTU = 5, XOR = 6, SRL = 7, SRA = 8, OR = 9, AND = 10;
+
+    // I-type integer
+    static final int ADDI = 11, SLTI = 12, SLTIU = 13, XORI = 14, ORI = 15, ANDI = 16, SLLI = 17, SRLI = 18, SRAI = 19;
+
+    // I-type loads
+    static final int LB = 20, LH = 21, LW = 22, LBU = 23, LHU = 24;
+
+    // S-type
+    static final int SB = 25, SH = 26, SW = 27;
+
+    // B-type
+    static final int BEQ = 28, BNE = 29, BLT = 30, BGE = 31, BLTU = 32, BGEU = 33;
+
+    // Jumps, U-type and environment calls
+    static final int JAL = 34, JALR = 35, LUI = 36, AUIPC = 37, ECALL = 38;
+
+    private Op() {}
+
+    /**
+     * Returns the operation id of a single instruction, or OTHER if it is not implemented by the fast path.
+     * Mirrors the switches in CPU.executeInstruction().
+     */
+    static int decode(int opcode, int funct3, int funct7) {
+        switch(opcode){
+            case 0b0110011: // ADD / SUB / SLL / SLT / SLTU / XOR / SRL / SRA / OR / AND
+                switch(funct3){
+                    case 0b000: return funct7 == 0 ? ADD : funct7 == 0b0100000 ? SUB : OTHER;
+                    case 0b001: return SLL;
+                    case 0b010: return SLT;
+                    case 0b011: return SLTU;
+                    case 0b100: return XOR;
+                    case 0b101: return funct7 == 0 ? SRL : funct7 == 0b0100000 ? SRA : OTHER;
+                    case 0b110: return OR;
+                    case 0b111: return AND;
+                }
+                return OTHER;
+            case 0b1101111: // JAL
+                return JAL;
+            case 0b1100111: // JALR
+                return JALR;
+            case 0b0000011: // LB / LH / LW / LBU / LHU
+                switch(funct3){
+                    case 0b000: return LB;
+                    case 0b001: return LH;
+                    case 0b010: return LW;
+                    case 0b100: return LBU;
+                    case 0b101: return LHU;
+                }
+                return OTHER;
+            case 0b0010011: // ADDI / SLTI / SLTIU / XORI / ORI / ANDI / SLLI / SRLI / SRAI
+                switch(funct3){
+                    case 0b000: return ADDI;
+                    case 0b010: return SLTI;
+                    case 0b011: return SLTIU;
+                    case 0b100: return XORI;
+                    case 0b110: return ORI;
+                    case 0b111: return ANDI;
+                    case 0b001: return SLLI;
+                    case 0b101: return funct7 == 0 ? SRLI : funct7 == 0b0100000 ? SRAI : OTHER;
+                }
+                return OTHER;
+            case 0b1110011: // ECALL, the CSR instructions go through CPU.executeInstruction()
+                return funct3 == 0 ? ECALL : OTHER;
+            case 0b0100011: // SB / SH / SW
+                switch(funct3){
+                    case 0b000: return SB;
+                    case 0b001: return SH;
+                    case 0b010: return SW;
+                }
+                return OTHER;
+            case 0b1100011: // BEQ / BNE / BLT / BGE / BLTU / BGEU
+                switch(funct3){
+                    case 0b000: return BEQ;
+                    case 0b001: return BNE;
+                    case 0b100: return BLT;
+                    case 0b101: return BGE;
+                    case 0b110: return BLTU;
+                    case 0b111: return BGEU;
+                }
+                return OTHER;
+            case 0b0110111: // LUI
+                return LUI;
+            case 0b0010111: // AUIPC
+                return AUIPC;
+        }
+        return OTHER;
+    }
+}
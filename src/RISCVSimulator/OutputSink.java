@@ -0,0 +1,16 @@
+/* File: OutputSink.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file defines where the CPU writes the output of the printing ECALLs:
+ * print_int (1), print_string (4) and print_character (11).
+ * StreamSink buffers output for the headless runners and ConsoleBuffer keeps the tail of it for the GUI console.
+ */
+
+package RISCVSimulator;
+
+public interface OutputSink {
+    OutputSink SYSTEM_OUT = text -> System.out.print(text);    // Unbuffered, the default of a new CPU
+    OutputSink DISCARD = text -> {};                            // Used by benchmarks and the regression suite
+
+    void print(String text);
+}
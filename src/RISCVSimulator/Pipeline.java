@@ -0,0 +1,267 @@
+/* File: Pipeline.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file estimates the cycles a classic 5-stage RV32I pipeline (IF, ID, EX, MEM, WB) would take to run
+ * the instructions retired by the CPU. It is a TraceListener: the CPU executes the program functionally and the model
+ * only follows the trace, so it costs nothing when it is not set (see CPU.setTracer()).
+ * The pipeline issues one instruction per cycle in order. For every instruction the model computes the cycle it
+ * enters EX from the instruction before it and three kinds of hazards:
+ * - Data hazards: an instruction waits in ID until its source registers are available. With forwarding, an ALU
+ *   result is available to the next instruction and a load result one cycle later (the load-use stall).
+ *   Without forwarding, every result is read from the register file in the writer's WB cycle: the register file is
+ *   written in the first half of the cycle and read in the second, so the reader enters EX 3 cycles after the writer.
+ * - Control hazards: fetch predicts not taken. A taken branch or a JALR is resolved in EX and flushes the
+ *   branch penalty (2 cycles by default), a JAL is resolved in ID and flushes the jump penalty (1 cycle by default).
+ * - ECALL is serializing: it waits until the instructions before it have left the pipeline, and the instruction
+ *   after it is only fetched once it has completed.
+ * Instructions the CPU hands to executeInstruction(), i.e. CSRs, fences and atomics, are timed like a load reading
+ * rs1 and rs2. The cycles and stalls are reported for the whole trace and per dynamic basic block: a block ends
+ * with a jump, branch or ECALL, and is charged for its instructions, its stalls and the flush its last instruction causes.
+ */
+
+package RISCVSimulator;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+final class Pipeline implements TraceListener {
+    static final int DEFAULT_BRANCH_PENALTY = 2;    // IF and ID of the wrong path, flushed when EX resolves a branch
+    static final int DEFAULT_JUMP_PENALTY = 1;      // IF of the wrong path, flushed when ID resolves a JAL
+    private static final int FILL = 2;              // Cycles before the first instruction enters EX
+    private static final int DRAIN = 2;             // Cycles after the last instruction leaves EX
+
+    // What each operation does in the pipeline, by operation id
+    private static final int READS_RS1 = 1, READS_RS2 = 2, READS = READS_RS1 | READS_RS2, WRITES = 4, LOAD = 8, CONTROL = 16;
+    private static final byte[] FLAGS = new byte[Op.ECALL + 1];
+
+    static {
+        for(int op = Op.ADD; op <= Op.AND; op++) FLAGS[op] = READS_RS1 | READS_RS2 | WRITES;
+        for(int op = Op.ADDI; op <= Op.SRAI; op++) FLAGS[op] = READS_RS1 | WRITES;
+        for(int op = Op.LB; op <= Op.LHU; op++) FLAGS[op] = READS_RS1 | WRITES | LOAD;
+        for(int op = Op.SB; op <= Op.SW; op++) FLAGS[op] = READS_RS1 | READS_RS2;
+        for(int op = Op.BEQ; op <= Op.BGEU; op++) FLAGS[op] = READS_RS1 | READS_RS2 | CONTROL;
+        FLAGS[Op.JAL] = WRITES | CONTROL;
+        FLAGS[Op.JALR] = READS_RS1 | WRITES | CONTROL;
+        FLAGS[Op.LUI] = FLAGS[Op.AUIPC] = WRITES;
+        FLAGS[Op.ECALL] = READS_RS1 | READS_RS2 | CONTROL;      // a0 and a1, see retired()
+        FLAGS[Op.OTHER] = READS_RS1 | READS_RS2 | WRITES | LOAD;
+    }
+
+    final boolean forwarding;
+    final int branchPenalty;
+    final int jumpPenalty;
+    final boolean serializeEcall;
+
+    private final Program program;
+    private final long[] ready = new long[32];      // Cycle from which each register can be used in EX
+    private final boolean[] loaded = new boolean[32];   // The last write to each register was by a load
+    private long ex = FILL;             // Cycle the last instruction entered EX
+    private long fetched;               // Earliest cycle the next instruction can enter EX after a flush
+    private boolean fetchedAfterEcall;  // The last flush was by a serializing ECALL
+    private long charged = FILL;        // Cycles charged to the blocks so far
+    private long instructions;
+    private long runs;
+
+    // Stall cycles by cause
+    private long loadUseStalls;
+    private long dataStalls;            // Other data hazards, only without forwarding
+    private long controlStalls;
+    private long ecallStalls;
+
+    // Dynamic basic blocks by the index of their first instruction
+    private final long[] blockExecutions;
+    private final long[] blockInstructions;
+    private final long[] blockCycles;
+    private long blockFirst;            // Instructions traced before the current block
+
+    /**
+     * Constructor of a model with forwarding, the default penalties and serializing ECALLs.
+     */
+    Pipeline(Program program) {
+        this(program, true, DEFAULT_BRANCH_PENALTY, DEFAULT_JUMP_PENALTY, true);
+    }
+
+    /**
+     * Constructor
+     * @param forwarding: Results are forwarded from EX and MEM to the next instructions
+     * @param branchPenalty: Cycles lost by a taken branch or a JALR
+     * @param jumpPenalty: Cycles lost by a JAL
+     * @param serializeEcall: ECALL drains the pipeline before it and the next instruction is fetched after it completes
+     */
+    Pipeline(Program program, boolean forwarding, int branchPenalty, int jumpPenalty, boolean serializeEcall) {
+        this.program = program;
+        this.forwarding = forwarding;
+        this.branchPenalty = branchPenalty;
+        this.jumpPenalty = jumpPenalty;
+        this.serializeEcall = serializeEcall;
+        blockExecutions = new long[program.length];
+        blockInstructions = new long[program.length];
+        blockCycles = new long[program.length];
+    }
+
+    /**
+     * Returns a model configured by a comma-separated list of settings, e.g. "forwarding=off,branch=3".
+     * The settings are forwarding=on|off, branch=cycles, jump=cycles and ecall=serialize|plain. "default" sets nothing.
+     * @throws IllegalArgumentException If a setting is unknown or its value invalid
+     */
+    static Pipeline parse(Program program, String settings) {
+        boolean forwarding = true, serializeEcall = true;
+        int branchPenalty = DEFAULT_BRANCH_PENALTY, jumpPenalty = DEFAULT_JUMP_PENALTY;
+        for(String setting : settings.split(",")){
+            if(setting.equals("default")) continue;
+            String[] kv = setting.split("=", 2);
+            String value = kv.length == 2 ? kv[1] : "";
+            switch(kv[0] + "=" + (value.matches("[0-9]{1,3}") ? "n" : value)){
+                case "forwarding=on":    forwarding = true; break;
+                case "forwarding=off":   forwarding = false; break;
+                case "branch=n":         branchPenalty = Integer.parseInt(value); break;
+                case "jump=n":           jumpPenalty = Integer.parseInt(value); break;
+                case "ecall=serialize":  serializeEcall = true; break;
+                case "ecall=plain":      serializeEcall = false; break;
+                default: throw new IllegalArgumentException("Unknown pipeline setting " + setting);
+            }
+        }
+        return new Pipeline(program, forwarding, branchPenalty, jumpPenalty, serializeEcall);
+    }
+
+    @Override
+    public void retired(int pc, int op, int rd, int rs1, int rs2, int address, int nextPc) {
+        int flags = FLAGS[op];
+        if(op == Op.ECALL && serializeEcall){
+            serialize(pc);
+            return;
+        }
+
+        // In order: one cycle after the previous instruction, unless fetch was redirected
+        long cycle = ex + 1;
+        if(fetched > cycle) cycle = refetch(cycle);
+
+        // Wait for the source registers
+        if((flags & READS) != 0){
+            if(op == Op.ECALL){     // Reads a0 and a1
+                rs1 = 10;
+                rs2 = 11;
+            }
+            long operands = (flags & READS_RS1) != 0 ? ready[rs1] : 0;
+            boolean load = operands > cycle && loaded[rs1];
+            if((flags & READS_RS2) != 0 && ready[rs2] > operands){
+                operands = ready[rs2];
+                load = loaded[rs2];
+            }
+            if(operands > cycle) cycle = stall(cycle, operands, load);
+        }
+        ex = cycle;
+        instructions++;
+
+        // Make the result available
+        if((flags & WRITES) != 0 && rd != 0){
+            boolean load = (flags & LOAD) != 0;
+            ready[rd] = forwarding ? cycle + (load ? 2 : 1) : cycle + 1 + DRAIN;
+            loaded[rd] = load;
+        }
+
+        if((flags & CONTROL) != 0) flush(pc, op, nextPc, cycle);
+    }
+
+    // Waits for fetch after a flush. The hot path of retired() is kept small, so the JIT inlines it into the CPU's loop.
+    private long refetch(long cycle) {
+        if(fetchedAfterEcall) ecallStalls += fetched - cycle;
+        else controlStalls += fetched - cycle;
+        return fetched;
+    }
+
+    // Waits for the operands of the instruction, which are available from the given cycle
+    private long stall(long cycle, long operands, boolean load) {
+        if(load && forwarding) loadUseStalls += operands - cycle;
+        else dataStalls += operands - cycle;
+        return operands;
+    }
+
+    // Flushes the wrong path after the jump, branch or plain ECALL at pc, and ends the block
+    private void flush(int pc, int op, int nextPc, long cycle) {
+        long end = cycle;   // Last cycle charged to the block
+        if(op == Op.JAL) end += jumpPenalty;
+        else if(op == Op.JALR || (op != Op.ECALL && nextPc != pc + 4)) end += branchPenalty;
+        fetched = end + 1;
+        fetchedAfterEcall = false;
+        endBlock(pc, end);
+    }
+
+    // Times a serializing ECALL: it waits until the instructions before it have completed, and the next instruction
+    // is fetched after its WB
+    private void serialize(int pc) {
+        long cycle = Math.max(ex + 1, fetched);
+        if(ex + 1 + DRAIN > cycle){
+            ecallStalls += ex + 1 + DRAIN - cycle;
+            cycle = ex + 1 + DRAIN;
+        }
+        ex = cycle;
+        instructions++;
+        fetched = cycle + DRAIN + FILL + 1;
+        fetchedAfterEcall = true;
+        endBlock(pc, fetched - 1);
+    }
+
+    // Charges the cycles since the last block up to end to the block ending with the instruction at pc
+    private void endBlock(int pc, long end) {
+        int b = program.index(pc - (int) ((instructions - blockFirst - 1) << 2));  // Blocks are straight-line code
+        blockExecutions[b]++;
+        blockInstructions[b] += instructions - blockFirst;
+        blockCycles[b] += end - charged;
+        charged = end;
+        blockFirst = instructions;
+    }
+
+    @Override
+    public void runEnded(long retired) {
+        runs++;
+    }
+
+    long instructions() {
+        return instructions;
+    }
+
+    /**
+     * Returns the cycles of the instructions traced so far, from the first fetch until the last instruction's WB.
+     */
+    long cycles() {
+        return instructions == 0 ? 0 : ex + DRAIN;
+    }
+
+    double cpi() {
+        return instructions == 0 ? 0 : (double) cycles() / instructions;
+    }
+
+    /**
+     * Returns a one-line summary, e.g. "1000 instructions, 1270 cycles, CPI 1.270 (load-use 20, data 0, control 240, ecall 10)".
+     */
+    String summary() {
+        return String.format("%d instructions, %d cycles, CPI %.3f (stall cycles: load-use %d, data %d, control %d, ecall %d)",
+                instructions, cycles(), cpi(), loadUseStalls, dataStalls, controlStalls, ecallStalls);
+    }
+
+    /**
+     * Writes the configuration, the summary and the blocks taking the most cycles with their CPI.
+     * @param top: Number of blocks listed
+     */
+    void writeReport(PrintWriter out, int top) {
+        out.printf("5-stage pipeline, forwarding %s, branch penalty %d, jump penalty %d, %s ECALL, %d run%s%n",
+                forwarding ? "on" : "off", branchPenalty, jumpPenalty, serializeEcall ? "serializing" : "plain",
+                runs, runs == 1 ? "" : "s");
+        out.println(summary());
+        List<Integer> blocks = new ArrayList<>();
+        for(int b = 0; b < blockExecutions.length; b++){
+            if(blockExecutions[b] > 0) blocks.add(b);
+        }
+        blocks.sort((a, b) -> Long.compare(blockCycles[b], blockCycles[a]));
+        out.printf("%-10s %14s %14s %14s %7s %7s  %s%n", "block", "executions", "instructions", "cycles", "%", "CPI", "location");
+        long cycles = cycles();
+        for(int b : blocks.subList(0, Math.min(top, blocks.size()))){
+            int address = program.address(b);
+            out.printf("0x%08x %14d %14d %14d %6.2f%% %7.3f  %s%n", address, blockExecutions[b], blockInstructions[b],
+                    blockCycles[b], cycles == 0 ? 0 : blockCycles[b] * 100.0 / cycles,
+                    (double) blockCycles[b] / blockInstructions[b], program.symbols.describe(address));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/* File: Profiler.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file profiles where a program spends its instructions while the CPU runs it with CPU.run().
+ * The run loop counts the executions of each basic block in the block and only calls the profiler for the first
+ * execution of a block and for calls and returns, so profiling costs a few additions per block and nothing per
+ * instruction. The block counts give the executions of each instruction, and the instructions retired between
+ * calls and returns are added to the current node of a calling context tree.
+ * Calls and returns are inferred from the instruction ending the block (see Block.linkage): JAL or JALR with
+ * rd = ra is a call, JALR x0, 0(ra) a return. Functions are named by the ELF symbols. A flat binary has none, so its
+ * functions are named by the addresses that were called, and other addresses by the closest called address below them.
+ * The reports are a flat profile with self and inclusive instruction counts per function, the call graph,
+ * the hottest blocks and instructions, and the collapsed stacks read by flame graph tools. A run that is traced at the
+ * same time, e.g. by a timing model, steps one instruction at a time, so its report has no hottest blocks.
+ */
+
+package RISCVSimulator;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class Profiler {
+    // Node of the calling context tree: a function reached through one sequence of calls
+    private static final class Frame {
+        final int function;     // Address the function was called at
+        final Frame parent;
+        long self;              // Instructions retired in this context, excluding callees
+        long calls;             // Number of times this context was entered
+        private HashMap<Integer, Frame> children;
+        Frame lastChild;            // Child returned by the previous call of child(), checked before the map
+
+        Frame(int function, Frame parent) {
+            this.function = function;
+            this.parent = parent;
+        }
+
+        Frame child(int function) {
+            if(children == null) children = new HashMap<>();
+            return lastChild = children.computeIfAbsent(function, f -> new Frame(f, this));
+        }
+    }
+
+    private final Program program;
+    private final ArrayList<Block> blocks = new ArrayList<>();  // Every block executed, with its count in Block.executions
+    private final long[] executions;        // Executions of each instruction not counted by a block, by index
+    private final Frame root;
+    private Frame current;
+    private long attributed;                // Instructions retired when current last got its instructions
+    private int[] returnStack = new int[64];    // Return address of every active call, innermost last
+    private int depth;
+    private long retired;                   // Instructions retired by the finished runs
+    private SymbolTable names;              // Names of functions in the report being written
+
+    /**
+     * Constructor
+     * Restarts the block counts of the program, so only one profiler of a program may be used at a time.
+     */
+    Profiler(Program program) {
+        this.program = program;
+        program.blocks.clearExecutions();
+        executions = new long[program.length];
+        root = current = new Frame(program.entry, null);
+        root.calls = 1;
+    }
+
+    /**
+     * Records the first complete execution of a block. The CPU counts the executions in Block.executions.
+     */
+    void firstExecution(Block block) {
+        blocks.add(block);
+    }
+
+    /**
+     * Records an execution of a block that stopped after the given number of instructions because it overwrote itself.
+     */
+    void partial(Block block, int executed) {
+        int first = program.index(block.start);
+        for(int i = 0; i < executed; i++) executions[first + i]++;
+    }
+
+    /**
+     * Follows the call or return ending a block, see Block.linkage.
+     * @param nextPc: Address the block continued at
+     * @param retiredInRun: Instructions retired by the current run of the CPU, including the block
+     */
+    void control(Block block, int nextPc, long retiredInRun) {
+        if(block.linkage == Block.CALL) call(block.fallPc, nextPc, retiredInRun);
+        else ret(nextPc, retiredInRun);
+    }
+
+    /**
+     * Records the execution of a single instruction at address pc, for instructions the CPU steps one at a time.
+     */
+    void instruction(int pc, int nextPc, long retiredInRun) {
+        int i = program.index(pc);
+        executions[i]++;
+        int op = program.op(i);     // Decodes the instruction if a store into the code dropped it since
+        byte linkage = Block.linkage(op, program.rd[i], program.rs1[i]);
+        if(linkage == Block.CALL) call(pc + 4, nextPc, retiredInRun);
+        else if(linkage == Block.RETURN) ret(nextPc, retiredInRun);
+    }
+
+    /**
+     * Ends a run of the CPU, which retired the given number of instructions.
+     */
+    void runEnded(long retiredInRun) {
+        retired += retiredInRun;
+    }
+
+    // Enters the function at target from a call returning to returnPc
+    private void call(int returnPc, int target, long retiredInRun) {
+        attribute(retiredInRun);
+        if(depth == returnStack.length) returnStack = Arrays.copyOf(returnStack, depth * 2);
+        returnStack[depth++] = returnPc;
+        Frame child = current.lastChild;
+        if(child == null || child.function != target) child = current.child(target);
+        child.calls++;
+        current = child;
+    }
+
+    // Leaves the functions up to the innermost call returning to target, e.g. past frames left by longjmp
+    private void ret(int target, long retiredInRun) {
+        if(depth > 0 && returnStack[depth - 1] == target){
+            attribute(retiredInRun);
+            depth--;
+            current = current.parent;
+            return;
+        }
+        for(int d = depth - 2; d >= 0; d--){
+            if(returnStack[d] == target){
+                attribute(retiredInRun);
+                for(; depth > d; depth--) current = current.parent;
+                return;
+            }
+        }
+    }
+
+    // Adds the instructions retired since the last call or return to the current context
+    private void attribute(long retiredInRun) {
+        long now = retired + retiredInRun;
+        current.self += now - attributed;
+        attributed = now;
+    }
+
+    /**
+     * Returns the number of times each instruction of the program was executed, by index.
+     */
+    long[] instructionCounts() {
+        long[] counts = executions.clone();
+        for(Block block : blocks){
+            int first = program.index(block.start);
+            for(int i = 0; i < block.length; i++) counts[first + i] += block.executions;
+        }
+        return counts;
+    }
+
+    // Names an address by the symbols of the report being written, e.g. "main+0x1c"
+    private String name(int address) {
+        return names.describe(address);
+    }
+
+    /**
+     * Returns the program's symbols. A flat binary has none, so its functions are the addresses that were called,
+     * and an address is named relative to the function containing it, e.g. "0x000000a0+0x1c".
+     */
+    private SymbolTable functionSymbols() {
+        if(program.symbols.size() > 0) return program.symbols;
+        HashSet<Integer> called = new HashSet<>();
+        addFunctions(root, called);
+        int[] address = called.stream().mapToInt(Integer::intValue).toArray();
+        String[] name = new String[address.length];
+        for(int i = 0; i < address.length; i++) name[i] = String.format("0x%08x", address[i]);
+        return SymbolTable.of(address, new int[address.length], name);
+    }
+
+    private void addFunctions(Frame frame, HashSet<Integer> called) {
+        called.add(frame.function);
+        if(frame.children != null){
+            for(Frame child : frame.children.values()) addFunctions(child, called);
+        }
+    }
+
+    /**
+     * Writes the flat profile, the call graph and the hottest blocks and instructions.
+     * @param top: Number of blocks and instructions listed
+     */
+    void writeReport(PrintWriter out, int top) {
+        attribute(0);
+        names = functionSymbols();
+        out.printf("Profile of %d instructions. Calls and returns are inferred from jal/jalr with ra.%n%n", retired);
+
+        // Self, inclusive and calls per function. A recursive function's inclusive count includes each instruction once.
+        Map<String, long[]> functions = new LinkedHashMap<>();  // self, inclusive, calls
+        Map<String, Long> edges = new LinkedHashMap<>();        // "caller -> callee" to calls
+        collect(root, new ArrayList<>(), functions, edges);
+        List<Map.Entry<String, long[]>> flat = new ArrayList<>(functions.entrySet());
+        flat.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        out.println("Flat profile:");
+        out.printf("%14s %7s %14s %7s %10s  %s%n", "self", "%", "inclusive", "%", "calls", "function");
+        for(Map.Entry<String, long[]> f : flat){
+            long[] v = f.getValue();
+            out.printf("%14d %6.2f%% %14d %6.2f%% %10d  %s%n", v[0], percent(v[0]), v[1], percent(v[1]), v[2], f.getKey());
+        }
+
+        List<Map.Entry<String, Long>> graph = new ArrayList<>(edges.entrySet());
+        graph.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        out.printf("%nCall graph:%n");
+        out.printf("%10s  %s%n", "calls", "caller -> callee");
+        for(Map.Entry<String, Long> e : graph) out.printf("%10d  %s%n", e.getValue(), e.getKey());
+
+        // A traced run steps one instruction at a time and executes no blocks, its counts are per instruction only
+        if(!blocks.isEmpty()){
+            out.printf("%nHottest blocks:%n");
+            out.printf("%-10s %6s %14s %14s %7s  %s%n", "address", "length", "executions", "instructions", "%", "location");
+            List<Block> hottest = new ArrayList<>(blocks);
+            hottest.sort((a, b) -> Long.compare(b.executions * b.length, a.executions * a.length));
+            for(Block block : hottest.subList(0, Math.min(top, hottest.size()))){
+                long instructions = block.executions * block.length;
+                out.printf("0x%08x %6d %14d %14d %6.2f%%  %s%n", block.start, block.length, block.executions,
+                        instructions, percent(instructions), name(block.start));
+            }
+        }
+
+        out.printf("%nHottest instructions:%n");
+        out.printf("%-10s %14s %7s  %-28s %s%n", "address", "executions", "%", "location", "instruction");
+        long[] counts = instructionCounts();
+        Integer[] order = new Integer[counts.length];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+        for(int k = 0; k < Math.min(top, order.length) && counts[order[k]] > 0; k++){
+            int i = order[k];
+            out.printf("0x%08x %14d %6.2f%%  %-28s %s%n", program.address(i), counts[i], percent(counts[i]),
+                    name(program.address(i)), new Instruction(program.word(i)).getAssemblyString());
+        }
+    }
+
+    // Adds the counts of the subtree of frame to the per-function and per-edge totals, returning its inclusive count
+    private long collect(Frame frame, List<String> stack, Map<String, long[]> functions, Map<String, Long> edges) {
+        String name = name(frame.function);
+        long[] f = functions.computeIfAbsent(name, n -> new long[3]);
+        f[0] += frame.self;
+        f[2] += frame.calls;
+        if(frame.parent != null) edges.merge(stack.get(stack.size() - 1) + " -> " + name, frame.calls, Long::sum);
+
+        long inclusive = frame.self;
+        stack.add(name);
+        if(frame.children != null){
+            for(Frame child : frame.children.values()) inclusive += collect(child, stack, functions, edges);
+        }
+        stack.remove(stack.size() - 1);
+        if(!stack.contains(name)) f[1] += inclusive;   // Outermost activation of a recursive function
+        return inclusive;
+    }
+
+    /**
+     * Writes one line per calling context, "main;foo;bar 1234", with the instructions retired in it.
+     * This is the collapsed stack format read by flame graph tools such as flamegraph.pl.
+     */
+    void writeCollapsed(PrintWriter out) {
+        attribute(0);
+        names = functionSymbols();
+        writeCollapsed(out, root, "");
+    }
+
+    private void writeCollapsed(PrintWriter out, Frame frame, String prefix) {
+        String stack = prefix.isEmpty() ? name(frame.function) : prefix + ";" + name(frame.function);
+        if(frame.self > 0) out.println(stack + " " + frame.self);
+        if(frame.children != null){
+            for(Frame child : frame.children.values()) writeCollapsed(out, child, stack);
+        }
+    }
+
+    private double percent(long count) {
+        return retired == 0 ? 0 : count * 100.0 / retired;
+    }
+}
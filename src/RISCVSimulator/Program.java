@@ -0,0 +1,150 @@
+/* File: Program.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file holds a loaded program as parallel primitive arrays (structure of arrays).
+ * The arrays are a decode cache of the code region, keyed by address: the instruction at address pc is
+ * index(pc) = (pc - base) / 4, and the CPU run loop reads its operation id, register indices and immediate
+ * from op[index], rd[index], ...
+ * Instructions are read from memory and decoded the first time they are executed, so data placed in the code
+ * region is never decoded unless the program jumps into it.
+ * Instruction objects, used by CPU.executeInstruction(), are only created when first asked for. Like the arrays, they
+ * belong to the thread running the program: stores into the code drop them on that thread, so the GUI decodes the
+ * words it displays itself.
+ */
+
+package RISCVSimulator;
+
+import java.util.Arrays;
+
+public class Program {
+    final int base;         // Address of the first word of the code region
+    final int end;          // Address following the code region
+    final int length;       // Number of instruction words in the code region
+    final int entry;        // Address of the first instruction to execute
+    final SymbolTable symbols;  // Symbols of an ELF file, empty for flat binaries
+    final int[] op;         // Operation id, see Op. Op.UNDECODED until the instruction is first executed
+    final byte[] rd;        // Destination register
+    final byte[] rs1;       // Source register 1
+    final byte[] rs2;       // Source register 2
+    final int[] imm;        // Decoded immediate
+    final BlockCache blocks;    // Translated basic blocks, shared by every CPU running this program on the same thread
+    private final Memory memory;        // Memory holding the instruction words
+    private Instruction[] instructions; // Lazily created Instruction objects, only used by the running thread
+
+    /**
+     * Constructor
+     * Nothing is decoded until it is executed, see op(i).
+     * @param memory: Memory the code is loaded in
+     * @param base: Address of the code region, a multiple of 4
+     * @param length: Number of instruction words in the code region
+     * @param entry: Address of the first instruction to execute
+     * @param symbols: Symbols of the program
+     */
+    Program(Memory memory, int base, int length, int entry, SymbolTable symbols) {
+        this.memory = memory;
+        this.base = base;
+        this.end = base + (length << 2);
+        this.length = length;
+        this.entry = entry;
+        this.symbols = symbols;
+        op = new int[length];
+        rd = new byte[length];
+        rs1 = new byte[length];
+        rs2 = new byte[length];
+        imm = new int[length];
+        Arrays.fill(op, Op.UNDECODED);
+        blocks = new BlockCache(this);
+    }
+
+    /**
+     * Returns the index of the instruction at address pc.
+     * Addresses below the code region give an index of at least 2^30, so index(pc) < length is the bounds check.
+     */
+    int index(int pc) {
+        return (pc - base) >>> 2;
+    }
+
+    // Address of instruction i
+    int address(int i) {
+        return base + (i << 2);
+    }
+
+    // Returns true while pc is in the code region, i.e. the program has not finished
+    boolean contains(int pc) {
+        return index(pc) < length;
+    }
+
+    /**
+     * Returns the operation id of instruction i, decoding it first if needed.
+     */
+    int op(int i) {
+        int id = op[i];
+        return id == Op.UNDECODED ? decode(i) : id;
+    }
+
+    /**
+     * Returns true if instruction i is an RV32A atomic (LR.W / SC.W / AMO*.W), which decodes to Op.OTHER.
+     */
+    boolean atomic(int i) {
+        return (word(i) & 0x7F) == 0b0101111;
+    }
+
+    /**
+     * Returns a new program with an empty decode cache over the same code, for another hart.
+     * Each hart decodes and translates on its own thread, like a per-core instruction cache.
+     */
+    Program copy() {
+        return new Program(memory, base, length, entry, symbols);
+    }
+
+    /**
+     * Forgets the decoding of instruction i, used when the program stores into its own code.
+     */
+    void invalidate(int i) {
+        op[i] = Op.UNDECODED;
+        if(instructions != null) instructions[i] = null;
+    }
+
+    /**
+     * Forgets the decoding of every instruction and drops all translated blocks, used by FENCE.I.
+     */
+    void invalidateAll() {
+        Arrays.fill(op, Op.UNDECODED);
+        instructions = null;
+        blocks.invalidateAll();
+    }
+
+    // Returns the raw instruction word i. Does not touch the memory's page cache, so the GUI thread may call it.
+    int word(int i) {
+        return memory.peekWord(address(i));
+    }
+
+    /**
+     * Decodes instruction i into the parallel arrays.
+     * @return The operation id of the instruction
+     */
+    int decode(int i) {
+        int instruction = word(i);
+        int opcode = instruction & 0x7F;
+        rd[i] = (byte) ((instruction >> 7) & 0x1F);
+        rs1[i] = (byte) ((instruction >> 15) & 0x1F);
+        rs2[i] = (byte) ((instruction >> 20) & 0x1F);
+        imm[i] = Instruction.decodeImmediate(instruction);
+        return op[i] = Op.decode(opcode, (instruction >> 12) & 0x7, (instruction >> 25) & 0x7F);
+    }
+
+    /**
+     * Returns instruction i as an Instruction object. The object is created on first use and kept.
+     */
+    Instruction instruction(int i) {
+        if(instructions == null) instructions = new Instruction[length];
+        Instruction inst = instructions[i];
+        if(inst == null) inst = instructions[i] = new Instruction(word(i));
+        return inst;
+    }
+
+    // Returns the instruction at address pc as an Instruction object
+    Instruction instructionAt(int pc) {
+        return instruction(index(pc));
+    }
+}
@@ -0,0 +1,163 @@
+/* File: RegressionSuite.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file validates a directory tree of RISC-V binaries against their expected register dumps.
+ * Every .bin or .elf file with a matching .res file is run in its own CPU and Memory instance on a worker pool,
+ * and the final registers are compared to the .res file.
+ * A test that has not exited after INSTRUCTION_LIMIT instructions or TIMEOUT_MILLIS milliseconds fails.
+ *
+ * Usage: java RISCVSimulator.RegressionSuite [directory] [threads]
+ */
+
+package RISCVSimulator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RegressionSuite {
+    static final long INSTRUCTION_LIMIT = 100_000_000;
+    static final long TIMEOUT_MILLIS = 10_000;
+
+    // Outcome of a single test program
+    static class Result {
+        final File bin;
+        final File res;
+        long instructions;
+        long nanos;
+        String failure;  // null if the test passed
+
+        Result(File bin, File res) {
+            this.bin = bin;
+            this.res = res;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        File root = new File(args.length > 0 ? args[0] : "tests");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        if(!root.isDirectory()){
+            System.err.println("Not a directory: " + root);
+            System.exit(2);
+        }
+
+        List<Result> tests = new ArrayList<>();
+        collect(root, tests);
+        long start = System.nanoTime();
+        runAll(tests, threads);
+        long wall = System.nanoTime() - start;
+
+        System.exit(report(root, tests, threads, wall) == 0 ? 0 : 1);
+    }
+
+    /**
+     * Recursively finds all .bin and .elf files with a reference .res file.
+     * The .res file is looked up next to the binary, and otherwise in the binary's immediate subdirectories.
+     */
+    static void collect(File dir, List<Result> tests) {
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        Arrays.sort(files);
+        for(File f : files){
+            if(f.isDirectory()){
+                collect(f, tests);
+            } else if(f.getName().endsWith(".bin") || f.getName().endsWith(".elf")){
+                File res = findReference(f);
+                if(res != null) tests.add(new Result(f, res));
+            }
+        }
+    }
+
+    // Returns the reference register dump of a binary, or null if there is none.
+    private static File findReference(File bin) {
+        String name = bin.getName().substring(0, bin.getName().length() - 4) + ".res";
+        File dir = bin.getParentFile();
+        File res = new File(dir, name);
+        if(res.isFile()) return res;
+        File[] subDirs = dir.listFiles(File::isDirectory);
+        if(subDirs == null) return null;
+        Arrays.sort(subDirs);
+        for(File sub : subDirs){
+            res = new File(sub, name);
+            if(res.isFile()) return res;
+        }
+        return null;
+    }
+
+    /**
+     * Runs all tests on a fixed pool of worker threads and waits for them to finish.
+     */
+    static void runAll(List<Result> tests, int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for(Result test : tests){
+            futures.add(pool.submit(() -> runTest(test)));
+        }
+        for(int i = 0; i < futures.size(); i++){
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                tests.get(i).failure = "crashed: " + e.getCause();
+            }
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Runs a single test in its own CPU and Memory instance and compares the registers to the reference.
+     */
+    static void runTest(Result test) {
+        long start = System.nanoTime();
+        try {
+            Memory mem = new Memory(Memory.DEFAULT_SIZE);
+            Program program = BinaryFiles.loadProgram(test.bin, mem);
+            CPU cpu = new CPU(mem, program);
+            cpu.setOutput(OutputSink.DISCARD);     // Tests run in parallel, their output would interleave
+            RunResult result = cpu.run(INSTRUCTION_LIMIT, TIMEOUT_MILLIS);
+            test.instructions = result.retired;
+            test.failure = result.limitExceeded() ? result.toString() : compare(cpu.reg, BinaryFiles.readRegisters(test.res));
+        } catch (Exception e) {
+            test.failure = "crashed: " + e;
+        }
+        test.nanos = System.nanoTime() - start;
+    }
+
+    // Returns a description of the registers that differ, or null if all registers match.
+    private static String compare(int[] actual, int[] expected) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 32; i++){
+            if(actual[i] != expected[i]){
+                sb.append(String.format(" x%d=0x%08X (expected 0x%08X)", i, actual[i], expected[i]));
+            }
+        }
+        return sb.length() == 0 ? null : "registers differ:" + sb;
+    }
+
+    /**
+     * Prints a line per test and a summary.
+     * @return Number of failed tests
+     */
+    static int report(File root, List<Result> tests, int threads, long wallNanos) {
+        int failed = 0;
+        long instructions = 0;
+        for(Result test : tests){
+            String name = root.toPath().relativize(test.bin.toPath()).toString();
+            System.out.printf("%-4s %-40s %12d instr %10.3f ms%n", test.failure == null ? "PASS" : "FAIL",
+                    name, test.instructions, test.nanos / 1e6);
+            if(test.failure != null){
+                System.out.println("     " + test.failure);
+                failed++;
+            }
+            instructions += test.instructions;
+        }
+        System.out.printf("%d tests, %d passed, %d failed. %d instructions in %.3f ms wall time on %d threads (%.2f MIPS)%n",
+                tests.size(), tests.size() - failed, failed, instructions, wallNanos / 1e6, threads,
+                HeadlessRunner.mips(instructions, wallNanos));
+        return failed;
+    }
+}
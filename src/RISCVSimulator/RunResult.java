@@ -0,0 +1,42 @@
+/* File: RunResult.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file describes how a run with limits ended: the program exited, an instruction or time limit
+ * stopped it first, or it was stopped on request. Either way it holds the number of retired instructions and the final pc and registers,
+ * so a batch run can report a program that does not terminate instead of waiting for it.
+ */
+
+package RISCVSimulator;
+
+final class RunResult {
+    enum Status { EXITED, INSTRUCTION_LIMIT, TIME_LIMIT, STOPPED }
+
+    final Status status;
+    final long retired;     // Instructions retired by the run
+    final int pc;           // Address of the next instruction, past the program if it exited
+    final int[] reg;        // Registers when the run ended
+    final String location;  // pc as a symbol, e.g. "loop+0x8", or in hex
+
+    RunResult(Status status, long retired, int pc, int[] reg, String location) {
+        this.status = status;
+        this.retired = retired;
+        this.pc = pc;
+        this.reg = reg;
+        this.location = location;
+    }
+
+    // Returns true if a limit, or a request, stopped the program before it exited
+    boolean limitExceeded() {
+        return status != Status.EXITED;
+    }
+
+    @Override
+    public String toString() {
+        switch(status){
+            case INSTRUCTION_LIMIT: return "instruction limit exceeded after " + retired + " instructions at " + location;
+            case TIME_LIMIT:        return "time limit exceeded after " + retired + " instructions at " + location;
+            case STOPPED:           return "stopped after " + retired + " instructions at " + location;
+            default:                return "exited after " + retired + " instructions";
+        }
+    }
+}
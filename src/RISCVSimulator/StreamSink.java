@@ -0,0 +1,36 @@
+/* File: StreamSink.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file buffers ECALL output before writing it to a stream, used by the headless runner.
+ * Characters are written as ISO-8859-1, so the bytes of a printed string reach the stream unchanged.
+ * Output is only guaranteed to be written after flush().
+ * The harts of a machine print from their own threads, so print and flush are synchronized.
+ */
+
+package RISCVSimulator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+public class StreamSink implements OutputSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final Writer out;
+
+    StreamSink(OutputStream stream) {
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.ISO_8859_1), BUFFER_SIZE);
+    }
+
+    @Override
+    public synchronized void print(String text) {
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Writes buffered output to the stream
+    synchronized void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,86 @@
+/* File: SymbolTable.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file holds the function and data symbols of a loaded ELF file, sorted by address,
+ * so addresses can be turned into names such as "main+0x1c" when profiling or tracing a program.
+ */
+
+package RISCVSimulator;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+final class SymbolTable {
+    static final SymbolTable EMPTY = new SymbolTable(new int[0], new int[0], new String[0]);
+
+    private final int[] address;    // Start address of each symbol, sorted unsigned
+    private final int[] size;       // Size in bytes, 0 for labels
+    private final String[] name;
+
+    private SymbolTable(int[] address, int[] size, String[] name) {
+        this.address = address;
+        this.size = size;
+        this.name = name;
+    }
+
+    /**
+     * Creates a table from unsorted symbols. The three arrays must have the same length.
+     */
+    static SymbolTable of(int[] address, int[] size, String[] name) {
+        Integer[] order = new Integer[address.length];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> address[i] & 0xFFFFFFFFL));
+        int[] sortedAddress = new int[order.length];
+        int[] sortedSize = new int[order.length];
+        String[] sortedName = new String[order.length];
+        for(int i = 0; i < order.length; i++){
+            sortedAddress[i] = address[order[i]];
+            sortedSize[i] = size[order[i]];
+            sortedName[i] = name[order[i]];
+        }
+        return new SymbolTable(sortedAddress, sortedSize, sortedName);
+    }
+
+    // Number of symbols
+    int size() {
+        return address.length;
+    }
+
+    int address(int i) {
+        return address[i];
+    }
+
+    String name(int i) {
+        return name[i];
+    }
+
+    /**
+     * Returns the index of the symbol containing addr, or -1 if there is none.
+     * A label without a size contains every address up to the next symbol.
+     */
+    int indexOf(int addr) {
+        int low = 0, high = address.length - 1, found = -1;
+        while(low <= high){    // Last symbol starting at or below addr
+            int mid = (low + high) >>> 1;
+            if(Integer.compareUnsigned(address[mid], addr) <= 0){
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if(found < 0) return -1;
+        if(size[found] != 0 && Integer.compareUnsigned(addr - address[found], size[found]) >= 0) return -1;
+        return found;
+    }
+
+    /**
+     * Returns the symbol at the given address, e.g. "main" or "main+0x1c", or the address in hex if no symbol contains it.
+     */
+    String describe(int addr) {
+        int i = indexOf(addr);
+        if(i < 0) return String.format("0x%08x", addr);
+        int offset = addr - address[i];
+        return offset == 0 ? name[i] : name[i] + "+0x" + Integer.toHexString(offset);
+    }
+}
@@ -8,21 +8,30 @@ package RISCVSimulator;
 
 import javafx.beans.property.SimpleStringProperty;
 
+import java.util.function.Supplier;
+
 public class TableHelper {
     private SimpleStringProperty name;
     private SimpleStringProperty value;
+    private Supplier<String> valueSupplier; // Computes value on first use, null once value is set
 
     public TableHelper(String name, String value){
         this.name = new SimpleStringProperty(name);
         this.value = new SimpleStringProperty(value);
     }
 
+    // Value is computed by valueSupplier the first time the row is displayed
+    public TableHelper(String name, Supplier<String> valueSupplier){
+        this.name = new SimpleStringProperty(name);
+        this.valueSupplier = valueSupplier;
+    }
+
     public String getName(){
         return name.get();
     }
 
     public String getValue(){
-        return value.get();
+        return valueProperty().get();
     }
 
     public void setName(String name){
@@ -30,7 +39,7 @@ public class TableHelper {
     }
 
     public void setValue(String value){
-        this.value.set(value);
+        valueProperty().set(value);
     }
 
     public SimpleStringProperty nameProperty(){
@@ -38,6 +47,10 @@ public class TableHelper {
     }
 
     public SimpleStringProperty valueProperty(){
+        if(value == null){
+            value = new SimpleStringProperty(valueSupplier.get());
+            valueSupplier = null;
+        }
         return value;
     }
 }
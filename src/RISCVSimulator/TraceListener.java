@@ -0,0 +1,47 @@
+/* File: TraceListener.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file defines a consumer of the instruction trace of a CPU, set with CPU.setTracer().
+ * While a listener is set, run() interprets the program one instruction at a time and reports every retired
+ * instruction with its operands, effective address and successor, so timing models and other analyses can follow
+ * the functional execution without changing it. Without a listener run() executes blocks as usual.
+ */
+
+package RISCVSimulator;
+
+interface TraceListener {
+    /**
+     * Called after every retired instruction.
+     * @param pc: Address of the instruction
+     * @param op: Operation id, see Op. OTHER for instructions the fast path does not implement, e.g. CSRs and atomics.
+     * @param rd: Destination register field, whether or not the instruction writes a register
+     * @param rs1: First source register field, whether or not the instruction reads it
+     * @param rs2: Second source register field, whether or not the instruction reads it
+     * @param address: Effective address of a load, store or atomic (see Program.atomic()), 0 for other instructions
+     * @param nextPc: Address of the next instruction, past the program if it exited
+     */
+    void retired(int pc, int op, int rd, int rs1, int rs2, int address, int nextPc);
+
+    /**
+     * Called at the end of every run of the CPU with the number of instructions it retired.
+     */
+    default void runEnded(long retired) {}
+
+    /**
+     * Returns a listener passing the trace to each of the given listeners in turn, or the listener itself if there is one.
+     */
+    static TraceListener of(TraceListener... listeners) {
+        if(listeners.length == 1) return listeners[0];
+        return new TraceListener() {
+            @Override
+            public void retired(int pc, int op, int rd, int rs1, int rs2, int address, int nextPc) {
+                for(TraceListener listener : listeners) listener.retired(pc, op, rd, rs1, rs2, address, nextPc);
+            }
+
+            @Override
+            public void runEnded(long retired) {
+                for(TraceListener listener : listeners) listener.runEnded(retired);
+            }
+        };
+    }
+}
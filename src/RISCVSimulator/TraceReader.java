@@ -0,0 +1,260 @@
+/* File: TraceReader.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file reads the trace files written by TraceRecorder, one record at a time.
+ * Only one block is held in memory, decoded into a Record the caller passes in, so traces of billions of records
+ * are read in constant memory and without allocating per record. seek() uses the index at the end of the file to
+ * start at any record; a trace without an index, e.g. of a run that was killed, can still be read from the start.
+ *
+ * Usage: java RISCVSimulator.TraceReader trace [first [count]]
+ * prints the number of records and the records from first on (all of them if count is not given).
+ */
+
+package RISCVSimulator;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public final class TraceReader implements Closeable {
+    // One retired instruction
+    public static final class Record {
+        public static final int LOAD = 1, STORE = 2, ATOMIC = 3;   // Kinds of memory access
+
+        public long number;     // Position in the trace, from 0
+        public int pc;
+        public int rd;          // Register written, 0 if none
+        public int value;       // Value written to rd
+        public int access;      // LOAD, STORE or ATOMIC, 0 if the instruction does not access memory
+        public int address;     // Address of the access
+        public int size;        // Bytes accessed
+        public int stored;      // Value written by a store
+        public boolean branch;  // Conditional branch, taken if the next record does not follow it
+        public boolean jump;    // JAL or JALR
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(String.format("%d 0x%08x", number, pc));
+            if(rd != 0) s.append(String.format(" x%d=0x%08x", rd, value));
+            if(access == LOAD) s.append(String.format(" load%d [0x%08x]", size, address));
+            else if(access == STORE) s.append(String.format(" store%d [0x%08x]=0x%x", size, address, stored));
+            else if(access == ATOMIC) s.append(String.format(" atomic [0x%08x]", address));
+            if(branch) s.append(" branch");
+            if(jump) s.append(" jump");
+            return s.toString();
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final long records;         // Records in the trace, -1 if it has no index
+    private final long[] offsets;       // File offset of every block, null if there is no index
+    private final long[] firsts;        // Number of the first record of every block
+    private DataInputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private byte[] compressed = new byte[0];
+    private byte[] data;                // Records of the current block
+    private int at;                     // Index of the next record in data
+    private int left;                   // Records left in the current block
+
+    // Decoder state, reset for every block
+    private long next;                  // Number of the next record
+    private int expectedPc;
+    private int lastAddress;
+    private final int[] values = new int[32];
+
+    /**
+     * Opens a trace and positions it at the first record.
+     * @throws IOException If the file cannot be read or is not a trace
+     */
+    public TraceReader(File trace) throws IOException {
+        file = new RandomAccessFile(trace, "r");
+        try {
+            byte[] magic = new byte[TraceRecorder.MAGIC.length];
+            file.readFully(magic);
+            int version = file.readInt();
+            int blockRecords = file.readInt();
+            if(!Arrays.equals(magic, TraceRecorder.MAGIC) || version != TraceRecorder.VERSION) throw new IOException("Not a trace: " + trace);
+            data = new byte[blockRecords * TraceRecorder.MAX_RECORD];
+
+            // Footer and index, if the recorder was closed
+            long size = file.length();
+            byte[] indexMagic = new byte[TraceRecorder.INDEX_MAGIC.length];
+            int footer = 8 + 8 + 4 + indexMagic.length;
+            long indexOffset = -1, count = -1;
+            int blocks = 0;
+            if(size >= magic.length + 8 + footer){
+                file.seek(size - footer);
+                indexOffset = file.readLong();
+                count = file.readLong();
+                blocks = file.readInt();
+                file.readFully(indexMagic);
+            }
+            if(Arrays.equals(indexMagic, TraceRecorder.INDEX_MAGIC)){
+                records = count;
+                offsets = new long[blocks];
+                firsts = new long[blocks];
+                file.seek(indexOffset);
+                DataInputStream index = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+                for(int b = 0; b < blocks; b++){
+                    offsets[b] = index.readLong();
+                    firsts[b] = index.readLong();
+                }
+            } else {
+                records = -1;
+                offsets = null;
+                firsts = null;
+            }
+            position(magic.length + 8, 0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of records in the trace, or -1 if it has no index.
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * Positions the reader so the next record read is the given one.
+     * @throws IOException If the trace has no index or cannot be read
+     */
+    public void seek(long record) throws IOException {
+        if(offsets == null) throw new IOException("The trace has no index");
+        int b = Arrays.binarySearch(firsts, record);
+        if(b < 0) b = -b - 2;   // Block containing the record
+        if(b < 0 || record >= records){     // Past the end: nothing left to read
+            next = records;
+            left = 0;
+            return;
+        }
+        position(offsets[b], firsts[b]);
+        Record skipped = new Record();
+        while(next < record) next(skipped);
+    }
+
+    // Starts reading the block at offset, whose first record is number first
+    private void position(long offset, long first) throws IOException {
+        file.seek(offset);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel()), 1 << 16));
+        left = 0;
+        next = first;
+    }
+
+    /**
+     * Reads the next record into record.
+     * @return False at the end of the trace, leaving record unchanged
+     * @throws IOException If the trace cannot be read or is corrupt
+     */
+    public boolean next(Record record) throws IOException {
+        if(left == 0 && !readBlock()) return false;
+        left--;
+        byte[] data = this.data;
+        int flags = data[at++] & 0xFF;
+        int pc = expectedPc;
+        if((flags & TraceRecorder.PC) != 0) pc += unzigzag(varint(data));
+        record.number = next++;
+        record.pc = pc;
+        record.rd = 0;
+        if((flags & TraceRecorder.WRITE) != 0){
+            int rd = data[at++];
+            record.rd = rd;
+            record.value = values[rd] += unzigzag(varint(data));
+        }
+        record.access = (flags & TraceRecorder.ACCESS) >> 2;
+        if(record.access != 0){
+            record.size = 1 << ((flags >> TraceRecorder.SIZE_SHIFT) & 3);
+            record.address = lastAddress += unzigzag(varint(data));
+            if(record.access == Record.STORE) record.stored = varint(data);
+        }
+        record.branch = (flags & TraceRecorder.BRANCH) != 0;
+        record.jump = (flags & TraceRecorder.JUMP) != 0;
+        expectedPc = pc + 4;
+        return true;
+    }
+
+    // Reads and inflates the next block, returning false at the end of the trace
+    private boolean readBlock() throws IOException {
+        if(offsets != null && next >= records) return false;   // The index follows the last block
+        int raw, size, count;
+        try {
+            raw = in.readInt();
+            size = in.readInt();
+            count = in.readInt();
+            if(raw < 0 || raw > data.length || size < 0 || count <= 0) throw new IOException("Corrupt trace block");
+            if(compressed.length < size) compressed = new byte[size];
+            in.readFully(compressed, 0, size);
+        } catch (EOFException e) {
+            if(offsets != null) throw e;
+            return false;   // A trace without index ends with its last complete block
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, size);
+        try {
+            int n = 0;
+            while(n < raw && !inflater.finished()) n += inflater.inflate(data, n, raw - n);
+            if(n != raw) throw new IOException("Corrupt trace block");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt trace block", e);
+        }
+        at = 0;
+        left = count;
+        expectedPc = 0;
+        lastAddress = 0;
+        Arrays.fill(values, 0);
+        return true;
+    }
+
+    // Reads an unsigned LEB128 varint at data[at]
+    private int varint(byte[] data) {
+        int value = 0;
+        for(int shift = 0; ; shift += 7){
+            byte b = data[at++];
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) return value;
+        }
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || args.length > 3 || !Arrays.stream(args, 1, args.length).allMatch(a -> a.matches("[0-9]{1,18}"))){
+            System.err.println("Usage: java RISCVSimulator.TraceReader trace [first [count]]");
+            System.exit(2);
+        }
+        try(TraceReader reader = new TraceReader(new File(args[0]))){
+            System.out.println(reader.records() < 0 ? "Trace without index" : reader.records() + " records");
+            if(args.length > 1) reader.seek(Long.parseLong(args[1]));
+            long count = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+            Record record = new Record();
+            StringBuilder out = new StringBuilder();
+            for(long i = 0; i < count && reader.next(record); i++){
+                out.append(record).append('\n');
+                if(out.length() > 1 << 16){
+                    System.out.print(out);
+                    out.setLength(0);
+                }
+            }
+            System.out.print(out);
+        }
+    }
+}
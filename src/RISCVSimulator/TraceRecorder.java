@@ -0,0 +1,288 @@
+/* File: TraceRecorder.java
+ * Authors: Marc Sun Bøg & Simon Amtoft Pedersen
+ *
+ * The following file records the execution of a CPU to a compact trace file, read back with TraceReader.
+ * It is a TraceListener, set with CPU.setTracer(): every retired instruction is stored with its pc, the value it wrote
+ * to rd, and its memory access (load, store or atomic, with address, size and the stored value).
+ * Records are encoded into blocks of BLOCK_RECORDS records. Within a block every field is delta-encoded against the
+ * previous record, so a record of straight-line ALU code takes 3 bytes before compression:
+ * - a flags byte, see the constants below
+ * - the pc, only if it does not follow the previous record's pc, as a zigzag varint of the difference
+ * - rd and the value written, as a zigzag varint of the difference to the last value written to rd in the block
+ * - the memory address, as a zigzag varint of the difference to the previous address in the block
+ * - the stored value of a store, as a varint
+ * All state starts from 0 in every block, so each block decodes on its own.
+ * Full blocks are handed through a bounded queue to a background thread, which deflates and writes them, so the CPU
+ * only encodes and waits only if the writer falls QUEUE_DEPTH blocks behind.
+ *
+ * File layout, big-endian:
+ *   header: MAGIC, int VERSION, int BLOCK_RECORDS
+ *   blocks: int raw length, int compressed length, int records, deflated records
+ *   index:  per block, long file offset and long number of its first record
+ *   footer: long index offset, long records, int blocks, INDEX_MAGIC
+ * The index is written by close(). A trace whose writer did not close it can still be read from the start.
+ */
+
+package RISCVSimulator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+final class TraceRecorder implements TraceListener, Closeable {
+    static final byte[] MAGIC = "RVTRACE\0".getBytes(StandardCharsets.ISO_8859_1);
+    static final byte[] INDEX_MAGIC = "RVINDEX\0".getBytes(StandardCharsets.ISO_8859_1);
+    static final int VERSION = 1;
+    static final int BLOCK_RECORDS = 1 << 16;
+    static final int MAX_RECORD = 1 + 5 + 1 + 5 + 5 + 5;   // Bytes of an encoded record at most
+    private static final int QUEUE_DEPTH = 4;               // Blocks waiting for the writer at most
+
+    // Flags of a record
+    static final int PC = 1;            // The pc does not follow the previous record's pc and is stored
+    static final int WRITE = 2;         // rd and its value are stored
+    static final int ACCESS = 0b1100;   // Memory access, one of the following, shifted by 2 the kinds of TraceReader.Record
+    static final int LOAD = 0b0100, STORE = 0b1000, ATOMIC = 0b1100;
+    static final int SIZE_SHIFT = 4;    // log2 of the access size in bits 4 and 5
+    static final int BRANCH = 0x40;     // Conditional branch
+    static final int JUMP = 0x80;       // JAL or JALR
+
+    // The flags each operation sets, and whether it writes rd, by operation id. Atomics are found in retired().
+    private static final int WRITES = 0x100;
+    private static final int[] KINDS = new int[Op.ECALL + 1];
+
+    static {
+        for(int op = Op.OTHER; op <= Op.SRAI; op++) KINDS[op] = WRITES;
+        KINDS[Op.LB] = KINDS[Op.LBU] = WRITES | LOAD;
+        KINDS[Op.LH] = KINDS[Op.LHU] = WRITES | LOAD | 1 << SIZE_SHIFT;
+        KINDS[Op.LW] = WRITES | LOAD | 2 << SIZE_SHIFT;
+        for(int op = Op.SB; op <= Op.SW; op++) KINDS[op] = STORE | (op - Op.SB) << SIZE_SHIFT;
+        for(int op = Op.BEQ; op <= Op.BGEU; op++) KINDS[op] = BRANCH;
+        KINDS[Op.JAL] = KINDS[Op.JALR] = WRITES | JUMP;
+        KINDS[Op.LUI] = KINDS[Op.AUIPC] = WRITES;
+    }
+
+    // A block of encoded records, recycled between the recorder and the writer
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+        int records;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private static final Chunk END = new Chunk(0);  // Tells the writer that the trace is complete
+
+    private final CPU cpu;
+    private final Program program;
+    private final ArrayBlockingQueue<Chunk> full = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    private final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+    private final Thread writer;
+    private volatile IOException failure;   // Set by the writer thread
+
+    // Encoder state, reset for every block
+    private Chunk chunk;
+    private byte[] data;
+    private int length;
+    private int records;
+    private int expectedPc;
+    private int lastAddress;
+    private final int[] values = new int[32];
+
+    private long recorded;
+    private boolean closed;
+
+    /**
+     * Constructor
+     * Starts the writer thread. The trace is only complete once close() has returned.
+     * @param cpu: CPU being traced, whose registers hold the values written by the recorded instructions
+     * @param program: The CPU's program
+     * @throws IOException If the file cannot be created
+     */
+    TraceRecorder(CPU cpu, Program program, File file) throws IOException {
+        this.cpu = cpu;
+        this.program = program;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(BLOCK_RECORDS);
+        for(int i = 0; i < QUEUE_DEPTH + 1; i++) free.add(new Chunk(BLOCK_RECORDS * MAX_RECORD));
+        chunk = new Chunk(BLOCK_RECORDS * MAX_RECORD);
+        data = chunk.data;
+        writer = new Thread(() -> write(out), "RISC-V trace writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void retired(int pc, int op, int rd, int rs1, int rs2, int address, int nextPc) {
+        int kind = KINDS[op];
+        if(op == Op.OTHER && program.atomic(program.index(pc))) kind |= ATOMIC | 2 << SIZE_SHIFT;
+        int flags = kind & 0xFF;
+        if(pc != expectedPc) flags |= PC;
+        boolean writes = rd != 0 && (kind & WRITES) != 0;
+        if(writes) flags |= WRITE;
+
+        byte[] data = this.data;
+        int at = length;
+        data[at++] = (byte) flags;
+        if(pc != expectedPc) at = varint(data, at, zigzag(pc - expectedPc));
+        if(writes) at = value(at, rd);
+        if((flags & ACCESS) != 0) at = access(at, flags, address, rs2);
+        length = at;
+        expectedPc = pc + 4;
+        if(++records == BLOCK_RECORDS) flush();
+    }
+
+    // Encodes the value written to rd at data[at] and returns the index after it
+    private int value(int at, int rd) {
+        int value = cpu.reg[rd];
+        data[at++] = (byte) rd;
+        at = varint(data, at, zigzag(value - values[rd]));
+        values[rd] = value;
+        return at;
+    }
+
+    // Encodes the address of a memory access, and the value of a store, at data[at] and returns the index after it
+    private int access(int at, int flags, int address, int rs2) {
+        at = varint(data, at, zigzag(address - lastAddress));
+        lastAddress = address;
+        if((flags & ACCESS) == STORE) at = varint(data, at, cpu.reg[rs2] & (int) ((1L << (8 << (flags >> SIZE_SHIFT & 3))) - 1));
+        return at;
+    }
+
+    // Hands the current block to the writer and starts the next one
+    private void flush() {
+        if(records == 0) return;
+        if(failure != null) throw new UncheckedIOException(failure);
+        chunk.length = length;
+        chunk.records = records;
+        recorded += records;
+        try {
+            full.put(chunk);
+            chunk = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while recording a trace"));
+        }
+        data = chunk.data;
+        length = 0;
+        records = 0;
+        expectedPc = 0;
+        lastAddress = 0;
+        Arrays.fill(values, 0);
+    }
+
+    /**
+     * Returns the number of instructions recorded so far.
+     */
+    long recorded() {
+        return recorded + records;
+    }
+
+    /**
+     * Writes the last block and the index, and waits for the writer to finish.
+     * @throws IOException If the trace could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        if(failure == null) flush();
+        try {
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing a trace");
+        }
+        if(failure != null) throw failure;
+    }
+
+    // Writer thread: deflates and writes the blocks, then the index and the footer
+    private void write(DataOutputStream out) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] compressed = new byte[BLOCK_RECORDS * MAX_RECORD + 1024];
+        long[] offsets = new long[64];
+        long[] firsts = new long[64];
+        int blocks = 0;
+        long offset = MAGIC.length + 8;
+        long first = 0;
+        try(out) {
+            while(true){
+                Chunk chunk = full.take();
+                if(chunk == END) break;
+                deflater.reset();
+                deflater.setInput(chunk.data, 0, chunk.length);
+                deflater.finish();
+                int size = 0;
+                while(!deflater.finished()){
+                    if(size == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    size += deflater.deflate(compressed, size, compressed.length - size);
+                }
+                out.writeInt(chunk.length);
+                out.writeInt(size);
+                out.writeInt(chunk.records);
+                out.write(compressed, 0, size);
+                if(blocks == offsets.length){
+                    offsets = Arrays.copyOf(offsets, blocks * 2);
+                    firsts = Arrays.copyOf(firsts, blocks * 2);
+                }
+                offsets[blocks] = offset;
+                firsts[blocks++] = first;
+                offset += 12 + size;
+                first += chunk.records;
+                free.put(chunk);
+            }
+            for(int b = 0; b < blocks; b++){
+                out.writeLong(offsets[b]);
+                out.writeLong(firsts[b]);
+            }
+            out.writeLong(offset);
+            out.writeLong(first);
+            out.writeInt(blocks);
+            out.write(INDEX_MAGIC);
+        } catch (IOException e) {
+            failure = e;
+            drain();
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Trace writer interrupted");
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Keeps recycling blocks after a write failed, so the recorder reports the failure instead of waiting
+    private void drain() {
+        try {
+            Chunk chunk;
+            while((chunk = full.take()) != END) free.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    // Writes value as an unsigned LEB128 varint at data[at] and returns the index after it
+    private static int varint(byte[] data, int at, int value) {
+        while((value & ~0x7F) != 0){
+            data[at++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        data[at++] = (byte) value;
+        return at;
+    }
+}
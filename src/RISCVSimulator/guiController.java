@@ -3,10 +3,15 @@
  *
  * The following file handles the flow of the entire program. 
  * The methods in this file are mostly GUI methods, which uses methods from other files.
+ * Run executes the program on a background thread. The JavaFX thread only sees snapshots of the CPU state (frames),
+ * which the runner publishes at most FRAMES_PER_SECOND times per second, so the window stays responsive.
+ * ECALL output is collected by a ConsoleBuffer, which keeps the last CONSOLE_CAPACITY characters.
+ * The program and memory tables are virtual lists covering the whole program and memory, see LazyTableRows.
  */
 
 package RISCVSimulator;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.Initializable;
@@ -17,16 +22,23 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import java.io.*;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.ResourceBundle;
 
 public class guiController implements Initializable{
     // CONSTANTS
     private static final int BYTES_PR_PAGE = 256; 	// 64 words
-    private static final int MEMORY_SIZE = 10485760; 	// 10MiB memory
+    private static final int MEMORY_SIZE = Memory.DEFAULT_SIZE; // 10MiB memory
+    private static final int MEMORY_WORDS = 1 << 30;    // Rows of the memory table, covering the 32bit address space
+    private static final int LAST_PAGE = -BYTES_PR_PAGE;    // 0xFFFFFF00, root address of the last table page
+    private static final int FRAMES_PER_SECOND = 30;    // UI refresh rate while running
+    private static final int FRAME_CHECK_INTERVAL = 4096;   // Instructions between checks for a due frame
+    private static final int CONSOLE_CAPACITY = 65536;      // Characters of ECALL output kept by the console
+    private static final long RUN_INSTRUCTION_LIMIT = 100_000_000;  // Instructions a press of Run executes at most
     
     // Keeping track of memory table
-    private int tableRootAddress = 0;
+    private int tableRootAddress = 0;           // Page shown by the memory table's previous/next buttons
+    private LazyTableRows memoryRows;           // Rows of the memory table, one per word
+    private LazyTableRows programRows;          // Rows of the program table, one per instruction word
     
     // FXML ELEMENTS
     private Stage primaryStage;
@@ -40,6 +52,7 @@ public class guiController implements Initializable{
     public Button buttonNext;
     public Button buttonPrevious;
     public Button buttonRun;
+    public Button buttonPause;
     public Button buttonReset;
     public Button buttonNextTable;
     public Button buttonPreviousTable;
@@ -66,13 +79,33 @@ public class guiController implements Initializable{
     
     // Controller variables
     private CPU cpu;
-    private Instruction[] program;
+    private Program program;
     private Memory mem = new Memory(MEMORY_SIZE);
     
-    // History keeping for stepping back and forth
-    private ArrayList<int[]> regHistory = new ArrayList<>();
-    private ArrayList<Integer> pcHistory = new ArrayList<>();
-    private ArrayList<byte[]> memHistory = new ArrayList<>();
+    // Undo journal for stepping back
+    private final History history = new History();
+
+    // ECALL output, written by the CPU and shown by refreshConsole()
+    private final ConsoleBuffer console = new ConsoleBuffer(CONSOLE_CAPACITY);
+    private long consoleVersion = -1;           // Version of console last shown
+
+    // Background execution
+    private Thread runner;                      // Thread executing the program, null when not running
+    private volatile boolean pauseRequested;    // Set by Pause, read by the runner between slices
+    private volatile boolean framePending;      // A published frame has not been shown yet
+
+    // CPU state sampled by the runner for one UI refresh
+    private static final class Frame {
+        final int prevPc;
+        final int[] reg;
+        final boolean last;         // Runner has stopped, finished or paused
+
+        Frame(int prevPc, int[] reg, boolean last) {
+            this.prevPc = prevPc;
+            this.reg = reg;
+            this.last = last;
+        }
+    }
 
     /**
      * Runs in start of guiController.
@@ -98,22 +131,32 @@ public class guiController implements Initializable{
 
     /**
      * Displays file chooser when Ctrl+O is asserted or when Open... button is pressed.
-     * If file is not picked, buttons are disabled.
-     * @throws IOException Throws exception if file is busy
+     * If file is not picked or cannot be loaded, buttons are disabled.
      */
-    public void chooseFile() throws IOException {
+    public void chooseFile() {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Open binary RISC-V code");
+        fileChooser.setTitle("Open RISC-V binary or ELF file");
         fileChooser.setInitialDirectory(new File(System.getProperty("user.dir")));
         File file = fileChooser.showOpenDialog(primaryStage);
+        String error = "No file chosen.";
+        Program loaded = null;
         if(file != null){
+            try {
+                loaded = BinaryFiles.loadProgram(file, mem);
+            } catch(IOException e) {    // Not a RISC-V executable
+                error = "ERROR: " + e.getMessage();
+            }
+        }
+        if(loaded != null){
             // Initialize processor
-            program = getInstructions(file);
+            program = loaded;
             cpu = new CPU(mem, program);
+            cpu.setOutput(console);
             
 	    // Initialize pc, mem and register tables
             programTable.setItems(initializePcTable(program));
-            memoryTable.setItems(initializeMemoryTable(0));
+            memoryTable.setItems(initializeMemoryTable());
+            memoryTable.scrollTo(tableRootAddress = 0);
             registerTable.setItems(initializeRegisterTable());
             
 	    // Display default stack pointer value
@@ -124,13 +167,14 @@ public class guiController implements Initializable{
             buttonRun.setDisable(false);
             buttonReset.setDisable(false);
             textFieldAddr.setDisable(false);
-            if(BYTES_PR_PAGE < MEMORY_SIZE) buttonNextTable.setDisable(false);
-            textFieldConsole.setText("");
+            buttonNextTable.setDisable(false);
+            console.clear();
+            refreshConsole();
             primaryStage.setTitle("RV32I Simulator - "+file.getName());
         } else {
             program = null;
             cpu = null;
-            textFieldConsole.setText("No file chosen.");
+            textFieldConsole.setText(error);
             
             // Disable all buttons
             buttonNext.setDisable(true);
@@ -147,9 +191,7 @@ public class guiController implements Initializable{
         regSelection.clearSelection();
 
         // Clear history
-        regHistory = new ArrayList<>();
-        memHistory = new ArrayList<>();
-        pcHistory  = new ArrayList<>();
+        history.clear();
     }
 
     /**
@@ -158,6 +200,7 @@ public class guiController implements Initializable{
      * @throws IOException Throws exception if file is busy
      */
     public void saveRegisters() throws IOException{
+        if(runner != null) return;
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Store register values as binary file");
         fileChooser.setInitialDirectory(new File(System.getProperty("user.dir")));
@@ -168,7 +211,7 @@ public class guiController implements Initializable{
                 textFieldConsole.setText("ERROR: CPU not initialized");
                 return;
             }
-            outToBin(file, cpu.reg);
+            BinaryFiles.writeRegisters(file, cpu.reg);
         }
     }
 
@@ -178,21 +221,10 @@ public class guiController implements Initializable{
      */
     public void executeNextInstruction(){
         if(buttonPrevious.isDisabled()) buttonPrevious.setDisable(false);
-        int[] tempReg = new int[32];
-        System.arraycopy(cpu.reg,0, tempReg,0,32);
-        pcHistory.add(cpu.pc);
-        regHistory.add(tempReg);
-
-        // Only store copy of memory if the next instruction is sType to avoid too much wasted memory.
-        if(program[cpu.pc].sType){
-            byte[] tempMem = new byte[mem.getMemory().length];
-            System.arraycopy(mem.getMemory(), 0, tempMem, 0, tempMem.length);
-            memHistory.add(tempMem);
-        }
-
+        history.record(cpu, program, mem);
         cpu.executeInstruction();
         updateNext();
-        if(cpu.pc >= program.length){ // Disable press of button if program is done
+        if(!program.contains(cpu.pc)){ // Disable press of button if program is done
             buttonRun.setDisable(true);
             buttonNext.setDisable(true);
         }
@@ -205,27 +237,15 @@ public class guiController implements Initializable{
     public void rewindOnce() {
         if(buttonNext.isDisabled()) buttonNext.setDisable(false);
         if(buttonRun.isDisabled()) buttonRun.setDisable(false);
-        // If most recently executed instruction was sType, restore memory
-        if(program[cpu.prevPc].sType){
-            System.arraycopy(memHistory.get(memHistory.size()-1), 0, mem.getMemory(), 0, MEMORY_SIZE);
-            memHistory.remove(memHistory.size() - 1);
-            updateMemoryTable();
-        }
-        //Revert program counter
-        if(pcHistory.size() > 1) cpu.prevPc = pcHistory.get(pcHistory.size() - 2);
-        else cpu.prevPc = 0;
-        cpu.pc = pcHistory.get(pcHistory.size() - 1);
-        pcSelection.clearAndSelect(cpu.prevPc); //Select previous program counter
-        regSelection.clearAndSelect(program[cpu.prevPc].rd);
-        
-	//Revert register values
-        System.arraycopy(regHistory.get(regHistory.size()-1), 0, cpu.reg, 0, 32);
-        replaceTableVal(registerTable, program[cpu.pc].rd, String.format("%d", cpu.reg[program[cpu.pc].rd]));
-        
-	//Delete from history
-        pcHistory.remove(pcHistory.size() - 1);
-        regHistory.remove(regHistory.size() - 1);
-        if(pcHistory.isEmpty()){
+        // Revert memory, registers and program counter of the most recently executed instruction
+        int undonePc = cpu.prevPc;
+        history.rewind(cpu, mem);
+        if(program.instructionAt(undonePc).sType) updateMemoryTable(undonePc);
+        pcSelection.clearAndSelect(program.index(cpu.prevPc)); //Select previous program counter
+        regSelection.clearAndSelect(program.instructionAt(cpu.prevPc).rd);
+        replaceTableVal(registerTable, program.instructionAt(cpu.pc).rd, String.format("%d", cpu.reg[program.instructionAt(cpu.pc).rd]));
+
+        if(history.isEmpty()){
             buttonPrevious.setDisable(true);
             regSelection.clearSelection();
             memSelection.clearSelection();
@@ -235,29 +255,118 @@ public class guiController implements Initializable{
 
     /**
      * Handles action when 'Run' button is pressed.
-     * If a file has been picked, and program is not done, then it executes the remaining instructions
+     * If a file has been picked, and program is not done, then it executes the remaining instructions on a background thread.
+     * Other controls are disabled until the program finishes or Pause is pressed.
      */
     public void executeRestOfProgram() {
-        if(program == null || cpu == null || mem == null) return;
-        if(cpu.pc >= program.length) return;
-        while(cpu.pc < program.length){
-            cpu.executeInstruction();
-            updateNext();
+        if(program == null || cpu == null || mem == null || runner != null) return;
+        if(!program.contains(cpu.pc)) return;
+        setRunning(true);
+
+	// Clear history, stepping back past a run is not supported
+        history.clear();
+
+        CPU cpu = this.cpu;
+        Program program = this.program;
+        Memory mem = this.mem;
+        pauseRequested = false;
+        framePending = false;
+        runner = new Thread(() -> runInBackground(cpu, program), "RISC-V runner");
+        runner.setDaemon(true);
+        runner.start();
+    }
+
+    /**
+     * Handles action when 'Pause' button is pressed.
+     * The runner stops after the current basic block and the GUI shows its state.
+     */
+    public void pauseProgram() {
+        pauseRequested = true;
+        cpu.requestStop();
+        buttonPause.setDisable(true);
+    }
+
+    /**
+     * Executes the program until it finishes, is paused or has executed RUN_INSTRUCTION_LIMIT instructions.
+     * The CPU runs its block engine (see CPU.run) in slices of FRAME_CHECK_INTERVAL instructions, and a frame is
+     * published between slices when one is due. Pause stops the current slice through CPU.requestStop().
+     * Runs on the runner thread, which is the only thread touching cpu and mem until its last frame is shown.
+     * A program stopped by the limit can be continued by pressing Run again.
+     */
+    private void runInBackground(CPU cpu, Program program) {
+        long frameNanos = 1_000_000_000L / FRAMES_PER_SECOND;
+        long nextFrame = System.nanoTime() + frameNanos;
+        long retired = 0;
+        while(program.contains(cpu.pc) && !pauseRequested && retired < RUN_INSTRUCTION_LIMIT){
+            retired += cpu.run(Math.min(FRAME_CHECK_INTERVAL, RUN_INSTRUCTION_LIMIT - retired));
+            // Coalesce: skip this frame if the JavaFX thread has not shown the previous one
+            if(System.nanoTime() >= nextFrame && !framePending){
+                publish(new Frame(cpu.prevPc, cpu.reg.clone(), false));
+                nextFrame = System.nanoTime() + frameNanos;
+            }
         }
-        // Disable buttons except reset
-        buttonNext.setDisable(true);
+        if(retired == RUN_INSTRUCTION_LIMIT && program.contains(cpu.pc)){
+            console.print("\n" + cpu.result(retired, RUN_INSTRUCTION_LIMIT, false) + ", press Run to continue\n");
+        }
+        publish(new Frame(cpu.prevPc, cpu.reg.clone(), true));
+    }
+
+    private void publish(Frame frame) {
+        framePending = true;
+        Platform.runLater(() -> showFrame(frame));
+    }
+
+    /**
+     * Shows a frame published by the runner in one batch: registers, selected pc, visible memory rows and console output.
+     * Memory rows and the console are read directly, memory through peekWord so the runner's page cache is not touched.
+     */
+    private void showFrame(Frame frame) {
+        framePending = false;
+        for(int i = 0; i < 32; i++){
+            replaceTableVal(registerTable, i, String.format("%d", frame.reg[i]));
+        }
+        memoryRows.invalidate();
+        memoryTable.refresh();
+        programRows.invalidate();   // The program may have overwritten its code
+        programTable.refresh();
+        pcSelection.clearAndSelect(program.index(frame.prevPc));
+        pcSelection.getTableView().scrollTo(program.index(frame.prevPc));
+        refreshConsole();
+        if(frame.last) runStopped();
+    }
+
+    // Called on the JavaFX thread after the last frame of a run
+    private void runStopped() {
+        runner = null;
+        setRunning(false);
         buttonPrevious.setDisable(true);
-        buttonRun.setDisable(true);
-        
-	// Clear selections
-        pcSelection.clearSelection();
-        memSelection.clearSelection();
-        regSelection.clearSelection();
-        
-	// Clear history
-        regHistory = new ArrayList<>();
-        memHistory = new ArrayList<>();
-        pcHistory  = new ArrayList<>();
+        if(!program.contains(cpu.pc)){
+            // Disable buttons except reset
+            buttonNext.setDisable(true);
+            buttonRun.setDisable(true);
+
+	    // Clear selections
+            pcSelection.clearSelection();
+            memSelection.clearSelection();
+            regSelection.clearSelection();
+        }
+    }
+
+    // Enables Pause and disables every other control while running, and the reverse when stopped
+    private void setRunning(boolean running) {
+        buttonPause.setDisable(!running);
+        buttonNext.setDisable(running);
+        buttonPrevious.setDisable(running);
+        buttonRun.setDisable(running);
+        buttonReset.setDisable(running);
+        menuItemOpen.setDisable(running);
+        textFieldAddr.setDisable(running);
+        if(running){
+            buttonNextTable.setDisable(true);
+            buttonPreviousTable.setDisable(true);
+        } else {
+            setMemoryButtonStates();
+        }
     }
 
     /**
@@ -267,7 +376,9 @@ public class guiController implements Initializable{
     public void resetProgram() {
         // New CPU instance and refreshing data.
         cpu = new CPU(mem, program);
-        memoryTable.setItems(initializeMemoryTable(tableRootAddress = 0));
+        cpu.setOutput(console);
+        memoryTable.setItems(initializeMemoryTable());
+        memoryTable.scrollTo(tableRootAddress = 0);
         registerTable.setItems(initializeRegisterTable());
         replaceTableVal(registerTable, 2, String.format("%d", cpu.reg[2]));
         programTable.setItems(initializePcTable(program));
@@ -284,10 +395,9 @@ public class guiController implements Initializable{
         setMemoryButtonStates();
 
         // Clear history
-        regHistory = new ArrayList<>();
-        memHistory = new ArrayList<>();
-        pcHistory  = new ArrayList<>();
-        textFieldConsole.setText("");
+        history.clear();
+        console.clear();
+        refreshConsole();
     }
 
 	// Exits application when Ctrl+Q is asserted or Exit button is pressed.
@@ -303,49 +413,37 @@ public class guiController implements Initializable{
      * Updates TableView with results from executed instruction
      */
     private void updateNext() {
-        replaceTableVal(registerTable, program[cpu.prevPc].rd, String.format("%d", cpu.reg[program[cpu.prevPc].rd]));
-        pcSelection.clearAndSelect(cpu.prevPc);
-        pcSelection.getTableView().scrollTo(cpu.prevPc);
-        if(program[cpu.prevPc].noRd){
-            if(program[cpu.prevPc].sType) updateMemoryTable();
-            if(program[cpu.prevPc].ecall) {
-                switch(cpu.reg[10]){
-                    case 1:
-                        consolePrint(String.format("%d", cpu.reg[11]));
-                        break;
-                    case 4:
-                        consolePrint(mem.getString(cpu.reg[11]));
-                        break;
-                    case 11:
-                        consolePrint(String.format("%c", cpu.reg[11]));
-                        break;
-                }
-            }
+        refreshConsole();
+        replaceTableVal(registerTable, program.instructionAt(cpu.prevPc).rd, String.format("%d", cpu.reg[program.instructionAt(cpu.prevPc).rd]));
+        pcSelection.clearAndSelect(program.index(cpu.prevPc));
+        pcSelection.getTableView().scrollTo(program.index(cpu.prevPc));
+        if(program.instructionAt(cpu.prevPc).noRd){
+            if(program.instructionAt(cpu.prevPc).sType) updateMemoryTable(cpu.prevPc);
             return;
         }
-        regSelection.clearAndSelect(program[cpu.prevPc].rd);
-        regSelection.getTableView().scrollTo(program[cpu.prevPc].rd);
+        regSelection.clearAndSelect(program.instructionAt(cpu.prevPc).rd);
+        regSelection.getTableView().scrollTo(program.instructionAt(cpu.prevPc).rd);
     }
 
     /**
-     * Changes memory table view from tableRootAddress to tableRootAddress - BYTES_PR_PAGE
+     * Scrolls memory table view from tableRootAddress to tableRootAddress - BYTES_PR_PAGE
      * Disables corresponding button if needed.
      */
     public void previousMemoryTable() {
         tableRootAddress -= BYTES_PR_PAGE;
         memSelection.clearSelection();
-        memoryTable.setItems(initializeMemoryTable(tableRootAddress));
+        memoryTable.scrollTo(tableRootAddress >>> 2);
         setMemoryButtonStates();
     }
 	
     /**
-     * Changes memory table view from tableRootAddress to tableRootAddress + BYTES_PR_PAGE
+     * Scrolls memory table view from tableRootAddress to tableRootAddress + BYTES_PR_PAGE
      * Disables corresponding button if needed.
      */
     public void nextMemoryTable() {
         tableRootAddress += BYTES_PR_PAGE;
         memSelection.clearSelection();
-        memoryTable.setItems(initializeMemoryTable(tableRootAddress));
+        memoryTable.scrollTo(tableRootAddress >>> 2);
         setMemoryButtonStates();
     }
 
@@ -354,46 +452,29 @@ public class guiController implements Initializable{
 	 * If no exception caught, change table view to said address.
      */
     public void gotoAddress() {
-        int destAddr, addrOffset;
+        int destAddr;
         try{
-            destAddr = Integer.parseInt(textFieldAddr.getText(), 16);
+            destAddr = Integer.parseUnsignedInt(textFieldAddr.getText(), 16);
             textFieldAddr.setText("");
         } catch (NumberFormatException e){
             textFieldConsole.setText("Failed to parse 32bit hexadecimal address (without 0x-prefix)");
             return;
         }
-        if(destAddr > MEMORY_SIZE-1){
-            textFieldConsole.setText("Address exceeds memory ("+(MEMORY_SIZE-1)+" Bytes)");
-            return;
-        }
-        tableRootAddress = BYTES_PR_PAGE * (destAddr / BYTES_PR_PAGE);
-        addrOffset = destAddr - tableRootAddress;
-        memoryTable.setItems(initializeMemoryTable(tableRootAddress));
-        memSelection.clearAndSelect(addrOffset >> 2);
-        memSelection.getTableView().scrollTo(addrOffset >> 2);
+        tableRootAddress = destAddr & -BYTES_PR_PAGE;
+        memSelection.clearAndSelect(destAddr >>> 2);
+        memSelection.getTableView().scrollTo(destAddr >>> 2);
         setMemoryButtonStates();
     }
 
     /**
-     * Gets address from previously executed instruction and updates table view accordingly
+     * Gets address from the store instruction at address storePc and updates table view accordingly
      */
-    private void updateMemoryTable(){
-        int addr = (cpu.reg[program[cpu.prevPc].rs1] + program[cpu.prevPc].imm) & 0xFFFFFFFC; // Remove byte offset
-        int addrOffset;
-        // Check if requested address is in same block as tableRootAddress
-        if( addr / BYTES_PR_PAGE == tableRootAddress / BYTES_PR_PAGE){
-            // Relative address compared to tableRootAddress
-            addrOffset = addr - tableRootAddress;
-            replaceTableVal(memoryTable, addrOffset >> 2, String.format("0x%08X", mem.getWord(addr)));
-            memSelection.clearAndSelect(addrOffset >> 2);
-            memSelection.getTableView().scrollTo(addrOffset >> 2);
-        } else {
-            tableRootAddress = BYTES_PR_PAGE * (addr / BYTES_PR_PAGE);
-            addrOffset = addr - tableRootAddress;
-            memoryTable.setItems(initializeMemoryTable(tableRootAddress));
-            memSelection.clearAndSelect(addrOffset >> 2);
-            memSelection.getTableView().scrollTo(addrOffset >> 2);
-        }
+    private void updateMemoryTable(int storePc){
+        int addr = (cpu.reg[program.instructionAt(storePc).rs1] + program.instructionAt(storePc).imm) & 0xFFFFFFFC; // Remove byte offset
+        replaceTableVal(memoryTable, addr >>> 2, String.format("0x%08X", mem.getWord(addr)));
+        memSelection.clearAndSelect(addr >>> 2);
+        memSelection.getTableView().scrollTo(addr >>> 2);
+        tableRootAddress = addr & -BYTES_PR_PAGE;
         setMemoryButtonStates();
     }
 
@@ -404,7 +485,7 @@ public class guiController implements Initializable{
         if(tableRootAddress == 0){
             buttonPreviousTable.setDisable(true);
             buttonNextTable.setDisable(false);
-        } else if(tableRootAddress == MEMORY_SIZE-BYTES_PR_PAGE){
+        } else if(tableRootAddress == LAST_PAGE){
             buttonPreviousTable.setDisable(false);
             buttonNextTable.setDisable(true);
         } else {
@@ -424,38 +505,41 @@ public class guiController implements Initializable{
     }
 
     /**
-     * Simulates console output by appending outPrint to what is already there.
-     * @param outPrint: String to append
+     * Shows the ECALL output kept by the console buffer, if it changed since it was last shown.
      */
-    private void consolePrint(String outPrint) {
-        textFieldConsole.setText(textFieldConsole.getText()+outPrint);
+    private void refreshConsole() {
+        long version = console.version();
+        if(version == consoleVersion) return;
+        consoleVersion = version;
+        textFieldConsole.setText(console.text());
     }
 
     /**
      * Sets up program table.
-     * @param program: An array of Instruction objects.
+     * Rows, and their assembly strings, are only built when they are displayed.
+     * They decode the instruction words read through peekWord themselves, since the Instruction objects kept by the
+     * program belong to the thread running it.
+     * @param program: The loaded program.
      * @return Returns a new ObservableList with Program Counter and Parsed Instruction
      */
-    private ObservableList<TableHelper> initializePcTable(Instruction[] program){
-        ObservableList<TableHelper> pcTable = FXCollections.observableArrayList();
-        for(int i = 0; i < program.length; i++){
-            pcTable.add(new TableHelper(String.format("%d", i << 2), String.format("%s", program[i].assemblyString)));
-        }
-        return pcTable;
+    private ObservableList<TableHelper> initializePcTable(Program program){
+        programRows = new LazyTableRows(program.length,
+                i -> String.format("%d", program.address(i)),
+                i -> new Instruction(program.word(i)).getAssemblyString());
+        return FXCollections.observableList(programRows);
     }
 
     /**
      * Sets up memory table
-     * @param startAddr: Start address that will be displayed as index 0 in resulting list
-     * @return Returns a new ObservableList consisting of (up to) BYTES_PR_PAGE / 4 rows.
+     * Rows are only built when they are displayed and read memory through peekWord, so the table covers the whole
+     * 32bit address space, not only the memory below the initial stack pointer.
+     * @return Returns a new ObservableList with one row per word of memory.
      */
-    private ObservableList<TableHelper> initializeMemoryTable(int startAddr){
-        ObservableList<TableHelper> memTable = FXCollections.observableArrayList();
-        for(int addrOffset = 0; addrOffset < BYTES_PR_PAGE; addrOffset += 4){
-            if(startAddr+addrOffset == MEMORY_SIZE) break;
-            memTable.add(new TableHelper(String.format("0x%06X", startAddr + addrOffset), String.format("0x%08X", mem.getWord(startAddr+addrOffset))));
-        }
-        return memTable;
+    private ObservableList<TableHelper> initializeMemoryTable(){
+        memoryRows = new LazyTableRows(MEMORY_WORDS,
+                i -> String.format("0x%08X", i << 2),
+                i -> String.format("0x%08X", mem.peekWord(i << 2)));
+        return FXCollections.observableList(memoryRows);
     }
 
     /**
@@ -470,39 +554,6 @@ public class guiController implements Initializable{
         return regTable;
     }
 
-    /**
-     * Adds instructions from binary file to program array
-     * @param f: A RISC-V binary file
-     * @return Array of parsed instructions
-     * @throws IOException Throws exception if file is busy
-     */
-    private Instruction[] getInstructions(File f) throws IOException {
-        DataInputStream dis = new DataInputStream(new FileInputStream(f));
-        int len = (int) f.length()/4;                       // Number of instructions
-        Instruction[] programInst = new Instruction[len];   // Instruction array
-        for(int i = 0; i < len; i++){
-            int data = Integer.reverseBytes(dis.readInt());
-            programInst[i] = new Instruction(data);
-            mem.storeWord(i*4, data);
-        }
-        dis.close();
-        return programInst;
-    }
-
-    /**
-     * Reads content in registers x0 to x31 and outputs to file
-     * @param file: Save destination
-     * @param reg: Array of integers to output
-     * @throws IOException Throws exception if file is busy.
-     */
-    private static void outToBin(File file, int[] reg) throws IOException {
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(file));
-        for (int val : reg) {
-            dos.writeInt(Integer.reverseBytes(val));
-        }
-        dos.close();
-    }
-	
 	// Used to pass stage from main
     void setStage(Stage stage){
         this.primaryStage = stage;
@@ -0,0 +1,39 @@
+	.text
+	# AMOs on the word at 0x1000, each returns the old word in its rd
+	li	t0, 0x1000
+	li	t1, 7
+	sw	t1, 0(t0)
+	li	t2, -3
+	amoswap.w	ra, t2, (t0)	# ra = 7, word = -3
+	li	t1, 10
+	amoadd.w	gp, t1, (t0)	# gp = -3, word = 7
+	li	t1, 12
+	amoxor.w	tp, t1, (t0)	# tp = 7, word = 11
+	li	t1, 6
+	amoand.w	s0, t1, (t0)	# s0 = 11, word = 2
+	li	t1, 48
+	amoor.w	s1, t1, (t0)	# s1 = 2, word = 50
+	li	t1, -5
+	amomin.w	a1, t1, (t0)	# a1 = 50, word = -5 (signed)
+	li	t1, 3
+	amomax.w	a2, t1, (t0)	# a2 = -5, word = 3 (signed)
+	li	t1, -1
+	amominu.w	a3, t1, (t0)	# a3 = 3, word = 3 (unsigned)
+	amomaxu.w	a4, t1, (t0)	# a4 = 3, word = -1 (unsigned)
+	lw	a5, 0(t0)	# a5 = -1
+	# LR.W / SC.W on the word at 0x1004
+	addi	t0, t0, 4
+	li	t1, 100
+	sw	t1, 0(t0)
+	lr.w	a6, (t0)	# a6 = 100
+	addi	t1, a6, 1
+	sc.w	a7, t1, (t0)	# a7 = 0, stored 101
+	sc.w	s2, t1, (t0)	# s2 = 1, the reservation was used
+	lr.w	s3, (t0)	# s3 = 101
+	addi	t3, t0, 4
+	sc.w	s4, t1, (t3)	# s4 = 1, other address, clears the reservation
+	sc.w	s5, t1, (t0)	# s5 = 1, no reservation left
+	lw	s6, 0(t0)	# s6 = 101
+	lw	s7, 0(t3)	# s7 = 0, the failed SC.W stored nothing
+	li	a0, 10
+	ecall
@@ -0,0 +1,24 @@
+	# Linked with code at 0x10000 and data at 0x20000
+	.text
+	.globl	_start
+_start:
+	auipc	a1, 0x10	# a1 = data
+	li	a2, 5
+	jal	ra, sum
+	mv	s0, a0
+	li	a0, 10
+	ecall
+sum:
+	mv	t1, a1
+	li	a0, 0
+.L1:
+	lw	t0, 0(t1)
+	add	a0, a0, t0
+	addi	t1, t1, 4
+	addi	a2, a2, -1
+	bne	a2, zero, .L1
+	ret
+
+	.data
+data:
+	.word	100, -7, 4096, 74565, 9